@@ -0,0 +1,286 @@
+/*************************************************************************
+ *  Compilation:  javac BatchLoader.java
+ *  Execution:    java BatchLoader directory
+ *
+ *  Loads many image files concurrently. Reading the bytes of each file
+ *  runs on I/O threads and decoding them on a bounded pool of decoder
+ *  threads, and the pictures come back through an iterator in the order
+ *  they finish. A file that can't be read or decoded yields a failed
+ *  result instead of stopping the batch, whatever was thrown.
+ *
+ *  % java BatchLoader images
+ *
+ *  Remarks
+ *  -------
+ *   - the I/O threads are virtual threads when the JVM has them (Java 21
+ *     and later), and a small pool of platform threads otherwise
+ *
+ *************************************************************************/
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import javax.imageio.ImageIO;
+
+
+/**
+ *  This class provides a concurrent loader for batches of image files.
+ *  load() starts loading every file at once and returns an iterator over
+ *  the results in completion order; each Result holds either the picture
+ *  or the exception that prevented loading it. At most a bounded number of
+ *  files are held in memory, read or decoded, but not yet taken from the
+ *  iterator, so a slow consumer throttles the loader instead of filling
+ *  the heap. Close the loader to stop its threads; iterators over its
+ *  batches then throw an IllegalStateException, even one blocked in
+ *  next().
+ */
+public final class BatchLoader implements AutoCloseable {
+    private final ExecutorService readers;  // I/O threads: read whole files into memory
+    private final ExecutorService decoders; // CPU threads: decode the bytes
+    private final int window;               // most files in flight per batch
+    private final Set<BlockingQueue<Result>> batches = ConcurrentHashMap.newKeySet();  // queues of unfinished batches
+    private volatile boolean closed;
+
+    private static final Result CLOSED = new Result(null, null, null);  // wakes iterators when the loader closes
+
+   /**
+     * The outcome of loading one file: a picture, or the exception or error
+     * that prevented loading it.
+     */
+    public static final class Result {
+        private final File file;
+        private final Picture picture;
+        private final Throwable error;
+
+        private Result(File file, Picture picture, Throwable error) {
+            this.file    = file;
+            this.picture = picture;
+            this.error   = error;
+        }
+
+       /**
+         * Return the file this result is for.
+         */
+        public File file() {
+            return file;
+        }
+
+       /**
+         * Was the file loaded?
+         */
+        public boolean succeeded() {
+            return error == null;
+        }
+
+       /**
+         * Return the picture, or throw a RuntimeException with the cause of
+         * the failure if the file wasn't loaded.
+         */
+        public Picture picture() {
+            if (error != null) { throw new RuntimeException("Could not load " + file, error); }
+            return picture;
+        }
+
+       /**
+         * Return the exception or error that prevented loading the file, or
+         * null.
+         */
+        public Throwable error() {
+            return error;
+        }
+
+       /**
+         * Return a string representation of this result.
+         */
+        public String toString() {
+            if (error != null) { return file + ": " + error.getMessage(); }
+            return file + ": " + picture.width() + "-by-" + picture.height();
+        }
+    }
+
+   /**
+     * Create a loader with one decoder thread per processor.
+     */
+    public BatchLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+   /**
+     * Create a loader with the given number of decoder threads.
+     */
+    public BatchLoader(int threads) {
+        if (threads < 1) { throw new IllegalArgumentException("need at least one thread"); }
+        decoders = Executors.newFixedThreadPool(threads, r -> daemon(r, "BatchLoader decoder"));
+        readers  = ioExecutor(threads);
+        window   = 4 * threads;
+    }
+
+   /**
+     * Load every image file in the given directory whose suffix names a
+     * format Picture reads, in name order of submission.
+     */
+    public Iterator<Result> load(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) { throw new RuntimeException("Could not list directory: " + directory); }
+        Arrays.sort(files);
+        Set<String> suffixes = new HashSet<String>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) { suffixes.add(suffix.toLowerCase()); }
+        List<File> images = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            String suffix = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+            if (file.isFile() && (suffixes.contains(suffix) || (Pnm.handles(name) && !suffix.equals("raw")))) {
+                images.add(file);
+            }
+        }
+        return load(images);
+    }
+
+   /**
+     * Load the given image files and return an iterator over the results in
+     * the order they finish. next() blocks until the next result is ready.
+     */
+    public Iterator<Result> load(List<File> files) {
+        final int n = files.size();
+        final BlockingQueue<Result> done = new LinkedBlockingQueue<Result>();
+        // only window files are handed to the readers at first, and one more
+        // as each result is taken, so no reader ever waits for a consumer
+        final Iterator<File> pending = new ArrayList<File>(files).iterator();
+        synchronized (this) {
+            if (closed) { throw new IllegalStateException("loader is closed"); }
+            if (n > 0) { batches.add(done); }
+            for (int k = 0; k < window && pending.hasNext(); k++) { start(pending.next(), done); }
+        }
+        return new Iterator<Result>() {
+            private int taken;
+
+            public boolean hasNext() {
+                if (taken == n) { return false; }
+                if (closed) { throw new IllegalStateException("loader is closed"); }
+                return true;
+            }
+
+            public Result next() {
+                if (!hasNext()) { throw new NoSuchElementException(); }
+                try {
+                    Result result = done.take();
+                    if (result == CLOSED) {
+                        done.add(CLOSED);   // for any other thread waiting on this batch
+                        throw new IllegalStateException("loader is closed");
+                    }
+                    if (++taken == n) { batches.remove(done); }
+                    if (pending.hasNext()) { start(pending.next(), done); }
+                    return result;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("interrupted while waiting for a picture");
+                }
+            }
+        };
+    }
+
+   /**
+     * Stop the loader's threads. Batches still in progress are abandoned,
+     * and their iterators throw an IllegalStateException from then on.
+     */
+    public synchronized void close() {
+        closed = true;
+        readers.shutdownNow();
+        decoders.shutdownNow();
+        for (BlockingQueue<Result> done : batches) { done.add(CLOSED); }
+        batches.clear();
+    }
+
+    // hand the file to a reader, or fail if the loader was closed meanwhile
+    private void start(File file, BlockingQueue<Result> done) {
+        try { readers.execute(() -> read(file, done)); }
+        catch (RejectedExecutionException e) {
+            throw new IllegalStateException("loader is closed");
+        }
+    }
+
+    // read the file on an I/O thread, then hand its bytes to a decoder
+    private void read(File file, BlockingQueue<Result> done) {
+        try {
+            if (Pnm.handles(file.getName())) {
+                // Pnm reads straight from the file at disk speed, no decode step to overlap
+                decoders.execute(() -> decode(file, null, done));
+                return;
+            }
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            decoders.execute(() -> decode(file, bytes, done));
+        }
+        catch (Throwable e) {
+            // errors too, such as running out of memory: next() waits for every file
+            done.add(new Result(file, null, e));
+        }
+    }
+
+    // decode the bytes of the file, or the file itself if bytes is null
+    private static void decode(File file, byte[] bytes, BlockingQueue<Result> done) {
+        try {
+            Picture picture;
+            if (bytes == null) { picture = new Picture(file); }
+            else               { picture = new Picture(new ByteArrayInputStream(bytes), file.getName()); }
+            done.add(new Result(file, picture, null));
+        }
+        catch (Throwable e) {
+            done.add(new Result(file, null, e));
+        }
+    }
+
+    // a virtual thread per task where the JVM has them, else a pool of platform threads
+    private static ExecutorService ioExecutor(int threads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(2 * threads, r -> daemon(r, "BatchLoader reader"));
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+
+   /**
+     * Test client. Loads every image in the directory named by the first
+     * command-line argument, prints each result as it arrives, and reports
+     * the total time.
+     */
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        int loaded = 0, failed = 0;
+        try (BatchLoader loader = new BatchLoader()) {
+            Iterator<Result> results = loader.load(new File(args[0]));
+            while (results.hasNext()) {
+                Result result = results.next();
+                System.out.println(result);
+                if (result.succeeded()) { loaded++; }
+                else                    { failed++; }
+            }
+        }
+        System.out.printf("%d loaded, %d failed in %.1f ms\n", loaded, failed,
+                          (System.nanoTime() - start) / 1e6);
+    }
+
+}
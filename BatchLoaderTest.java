@@ -0,0 +1,196 @@
+/*************************************************************************
+ *  Compilation:  javac BatchLoaderTest.java
+ *  Execution:    java BatchLoaderTest
+ *
+ *  Checks of BatchLoader failure handling. Prints one line per check and
+ *  exits with status 1 if any fails.
+ *
+ *  % java BatchLoaderTest
+ *  error result: ok
+ *  ...
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public final class BatchLoaderTest {
+    private static int failures = 0;
+
+    private BatchLoaderTest() { }
+
+    private static void check(String name, boolean ok) {
+        System.out.println(name + ": " + (ok ? "ok" : "FAILED"));
+        if (!ok) { failures++; }
+    }
+
+    // a PGM file whose header asks for a 1-by-(2^31 - 1) picture: decoding it
+    // throws an OutOfMemoryError, not an IOException, whatever the heap size
+    private static File huge() throws IOException {
+        File file = File.createTempFile("huge", ".pgm");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("P5\n1 2147483647\n255\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        return file;
+    }
+
+    private static File small() throws IOException {
+        File file = File.createTempFile("small", ".pgm");
+        Pnm.write(Picture.gray(3, 2), file);
+        return file;
+    }
+
+    private static void errorResult() throws Exception {
+        File bad = huge();
+        File good = small();
+        try (BatchLoader loader = new BatchLoader(2)) {
+            List<File> files = new ArrayList<File>();
+            files.add(bad);
+            files.add(good);
+            Iterator<BatchLoader.Result> results = loader.load(files);
+            int loaded = 0, failed = 0;
+            Throwable error = null;
+            // a worker that dies without posting a result would hang here
+            Thread timeout = watchdog();
+            while (results.hasNext()) {
+                BatchLoader.Result result = results.next();
+                if (result.succeeded()) { loaded++; }
+                else                    { failed++; error = result.error(); }
+            }
+            timeout.interrupt();
+            check("error result", failed == 1 && error instanceof OutOfMemoryError);
+            check("other file loads", loaded == 1);
+        }
+        finally {
+            bad.delete();
+            good.delete();
+        }
+    }
+
+    private static void closeDuringIteration() throws Exception {
+        File good = small();
+        try {
+            BatchLoader loader = new BatchLoader(1);
+            List<File> files = new ArrayList<File>();
+            for (int i = 0; i < 10; i++) { files.add(good); }
+            Iterator<BatchLoader.Result> results = loader.load(files);
+            results.next();
+            loader.close();
+            check("hasNext() after close", throwsIllegalState(() -> results.hasNext()));
+            check("next() after close", throwsIllegalState(() -> results.next()));
+            check("load() after close", throwsIllegalState(() -> loader.load(files)));
+        }
+        finally { good.delete(); }
+    }
+
+    private static void undrainedBatch() throws Exception {
+        File good = small();
+        BatchLoader loader = new BatchLoader(1);
+        try {
+            // a batch nobody takes from must not hold up the readers of the next
+            List<File> many = new ArrayList<File>();
+            for (int i = 0; i < 50; i++) { many.add(good); }
+            loader.load(many);
+            List<File> two = new ArrayList<File>();
+            two.add(good);
+            two.add(good);
+            Iterator<BatchLoader.Result> results = loader.load(two);
+            Thread timeout = watchdog();
+            int loaded = 0;
+            while (results.hasNext()) {
+                if (results.next().succeeded()) { loaded++; }
+            }
+            timeout.interrupt();
+            check("undrained batch", loaded == 2);
+
+            // a finished batch just ends once the loader is closed
+            loader.close();
+            check("hasNext() of a finished batch after close", !results.hasNext());
+        }
+        finally {
+            loader.close();
+            good.delete();
+        }
+    }
+
+    private static void closeWhileWaiting() throws Exception {
+        // reading a named pipe that nobody writes blocks the reader for good,
+        // so next() waits until close() wakes it
+        File pipe = new File(System.getProperty("java.io.tmpdir"), "blocked" + System.nanoTime() + ".png");
+        Process mkfifo;
+        try { mkfifo = new ProcessBuilder("mkfifo", pipe.getPath()).start(); }
+        catch (IOException e) {
+            System.out.println("close wakes next(): skipped, no mkfifo");
+            return;
+        }
+        if (mkfifo.waitFor() != 0) {
+            System.out.println("close wakes next(): skipped, no mkfifo");
+            return;
+        }
+        try {
+            BatchLoader loader = new BatchLoader(1);
+            List<File> files = new ArrayList<File>();
+            files.add(pipe);
+            Iterator<BatchLoader.Result> results = loader.load(files);
+            AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+            Thread consumer = new Thread(() -> {
+                try { results.next(); }
+                catch (Throwable t) { thrown.set(t); }
+            });
+            consumer.start();
+            Thread.sleep(200);
+            boolean waiting = consumer.isAlive();
+            loader.close();
+            consumer.join(5000);
+            check("close wakes next()", waiting && !consumer.isAlive()
+                                        && thrown.get() instanceof IllegalStateException);
+        }
+        finally { pipe.delete(); }
+    }
+
+    private static boolean throwsIllegalState(Runnable action) {
+        try { action.run(); }
+        catch (IllegalStateException e) { return true; }
+        return false;
+    }
+
+    // fail the run instead of hanging if a check never finishes
+    private static Thread watchdog() {
+        Thread thread = new Thread(() -> {
+            try {
+                TimeUnit.SECONDS.sleep(30);
+                System.out.println("timed out waiting for results");
+                System.exit(1);
+            }
+            catch (InterruptedException e) { }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+
+   /**
+     * Run every check.
+     */
+    public static void main(String[] args) throws Exception {
+        errorResult();
+        closeDuringIteration();
+        undrainedBatch();
+        closeWhileWaiting();
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+    }
+
+}
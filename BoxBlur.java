@@ -0,0 +1,163 @@
+/*************************************************************************
+ *  Compilation:  javac BoxBlur.java
+ *  Execution:    java BoxBlur imagename radius
+ *
+ *  Box blur of any radius in constant time per pixel. Each output pixel
+ *  is the mean of the (2r+1)-by-(2r+1) square around it, as in the 3x3
+ *  smoothing of Picture6, but instead of adding up the square for every
+ *  pixel, a running sum slides along each row and a running sum of those
+ *  slides down each column: one pixel enters and one leaves per step.
+ *
+ *  % java BoxBlur lich.png 50
+ *
+ *  Remarks
+ *  -------
+ *   - pixels outside the picture take the value of the nearest edge pixel,
+ *     so the result is exactly that of Convolution.box(2r+1)
+ *
+ *   - both radii are at most 4210751, so that the window sums of a row
+ *     fit in an int
+ *
+ *************************************************************************/
+
+
+/**
+ *  This class provides the box blur of the red, green and blue channels,
+ *  with the alpha channel copied from the source. Bands of rows are blurred
+ *  in parallel; each band keeps one long per channel per column, and reads
+ *  each row entering and leaving its window once, so both time and memory
+ *  are independent of the radius. See also SummedAreaTable, for box sums
+ *  of arbitrary rectangles.
+ */
+public final class BoxBlur {
+    private static final int MAX_RADIUS = (Integer.MAX_VALUE / 255 - 1) / 2;  // window sums of a row fit in an int
+
+    private BoxBlur() { }
+
+   /**
+     * Return the picture blurred with a (2*radius+1)-by-(2*radius+1) box,
+     * as a new picture.
+     */
+    public static Picture blur(Picture picture, int radius) {
+        Picture result = Convolution.blank(picture);
+        blur(picture, result, radius, radius);
+        return result;
+    }
+
+   /**
+     * Write source blurred with a (2*rx+1)-by-(2*ry+1) box to target, which
+     * must have the same size and can't be source.
+     */
+    public static void blur(Picture source, Picture target, int rx, int ry) {
+        final int w = source.width();
+        final int h = source.height();
+        if (target.width() != w || target.height() != h) {
+            throw new IllegalArgumentException("target must be " + w + "-by-" + h);
+        }
+        if (target == source)  { throw new IllegalArgumentException("can't blur a picture in place"); }
+        if (rx < 0 || ry < 0)  { throw new IllegalArgumentException("radius must be nonnegative"); }
+        if (rx > MAX_RADIUS) { throw new IllegalArgumentException("horizontal radius " + rx + " is too large"); }
+        if (ry > MAX_RADIUS) { throw new IllegalArgumentException("vertical radius " + ry + " is too large"); }
+        final long area = (long) (2*rx + 1) * (2*ry + 1);
+
+        // each band starts by summing its first 2ry+1 rows, so keep bands
+        // several windows tall
+        int grain = Math.max(Math.max(16, 4 * (2*ry + 1)), Parallel.grain(h));
+        Parallel.forRange(h, grain, (lo, hi) -> {
+            int[] row = new int[w];
+            int[] sums = new int[3*w];      // horizontal window sums of one row, r g b per column
+            long[] window = new long[3*w];  // sums of the horizontal sums of rows y-ry..y+ry
+
+            // rows above and below the picture repeat its first and last
+            // rows, whose sums are taken once and counted as often as needed
+            int[] top    = new int[3*w];
+            int[] bottom = new int[3*w];
+            horizontal(source, 0, rx, row, top);
+            horizontal(source, h - 1, rx, row, bottom);
+            int first = lo - ry, last = lo + ry;
+            long above = Math.max(0, Math.min(last, 0) - first + 1);             // rows y <= 0
+            long below = Math.max(0, last - Math.max(first, Math.max(1, h - 1)) + 1);   // rows y >= h-1, y > 0
+            for (int k = 0; k < 3*w; k++) { window[k] = above * top[k] + below * bottom[k]; }
+            for (int y = Math.max(1, first); y <= Math.min(last, h - 2); y++) {
+                horizontal(source, y, rx, row, sums);
+                for (int k = 0; k < 3*w; k++) { window[k] += sums[k]; }
+            }
+            for (int y = lo; y < hi; y++) {
+                source.getRow(y, row);
+                for (int x = 0, k = 0; x < w; x++, k += 3) {
+                    row[x] = (row[x] & 0xFF000000)
+                           | (int) (window[k]     / area) << 16
+                           | (int) (window[k + 1] / area) <<  8
+                           | (int) (window[k + 2] / area);
+                }
+                target.setRow(y, row);
+                if (y + 1 == hi) { break; }
+
+                // slide the window down one row
+                int[] in = rowSums(source, y + ry + 1, rx, row, sums, top, bottom);
+                for (int k = 0; k < 3*w; k++) { window[k] += in[k]; }
+                int[] out = rowSums(source, y - ry, rx, row, sums, top, bottom);
+                for (int k = 0; k < 3*w; k++) { window[k] -= out[k]; }
+            }
+        });
+    }
+
+    // the horizontal sums of row y, clamped to the picture: top or bottom
+    // for the edge rows and beyond, else computed into sums
+    private static int[] rowSums(Picture source, int y, int rx, int[] row, int[] sums,
+                                 int[] top, int[] bottom) {
+        if (y <= 0)                     { return top;    }
+        if (y >= source.height() - 1)   { return bottom; }
+        horizontal(source, y, rx, row, sums);
+        return sums;
+    }
+
+    // the sums over the horizontal window of radius rx around each pixel
+    // of row y, r g b per column, with the edge pixels repeated
+    private static void horizontal(Picture source, int y, int rx, int[] row, int[] sums) {
+        int w = row.length;
+        source.getRow(y, row);
+        // the window around x = 0: rx + 1 copies of the first pixel, then
+        // pixels 1..rx, the last of them repeated past the end of the row
+        int left = row[0], right = row[w - 1];
+        int r = (rx + 1) * ((left >> 16) & 0xFF);
+        int g = (rx + 1) * ((left >>  8) & 0xFF);
+        int b = (rx + 1) * ( left        & 0xFF);
+        int inside = Math.min(rx, w - 1);
+        for (int x = 1; x <= inside; x++) {
+            int rgb = row[x];
+            r += (rgb >> 16) & 0xFF;
+            g += (rgb >>  8) & 0xFF;
+            b +=  rgb        & 0xFF;
+        }
+        int beyond = rx - inside;
+        r += beyond * ((right >> 16) & 0xFF);
+        g += beyond * ((right >>  8) & 0xFF);
+        b += beyond * ( right        & 0xFF);
+        for (int x = 0, k = 0; x < w; x++, k += 3) {
+            sums[k]     = r;
+            sums[k + 1] = g;
+            sums[k + 2] = b;
+            int in  = row[Math.min(w - 1, x + rx + 1)];
+            int out = row[Math.max(0, x - rx)];
+            r += ((in >> 16) & 0xFF) - ((out >> 16) & 0xFF);
+            g += ((in >>  8) & 0xFF) - ((out >>  8) & 0xFF);
+            b += ( in        & 0xFF) - ( out        & 0xFF);
+        }
+    }
+
+
+   /**
+     * Test client. Blurs the picture named by the first command-line argument
+     * with a box of the given radius, reports the time and shows the result.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        int radius = Integer.parseInt(args[1]);
+        long start = System.nanoTime();
+        Picture blurred = blur(picture, radius);
+        System.out.printf("radius %d: %.1f ms\n", radius, (System.nanoTime() - start) / 1e6);
+        blurred.show();
+    }
+
+}
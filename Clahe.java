@@ -0,0 +1,203 @@
+/*************************************************************************
+ *  Compilation:  javac Clahe.java
+ *  Execution:    java Clahe imagename tiles clip
+ *
+ *  Contrast-limited adaptive histogram equalization. The picture is cut
+ *  into a grid of tiles, and each tile gets its own equalization table,
+ *  built as in Picture7 from its histogram after clipping the histogram
+ *  at a limit to keep noise in flat regions from being amplified. Each
+ *  pixel is then mapped through the tables of the four nearest tiles,
+ *  interpolated bilinearly between the tile centers so that no seams
+ *  show at tile boundaries.
+ *
+ *  % java Clahe scan.png 8 3.0
+ *
+ *************************************************************************/
+
+
+/**
+ *  This class provides CLAHE on the red, green and blue channels
+ *  independently, like the global equalization of Picture7; a gray picture
+ *  stays gray. The tile histograms are counted in parallel, one row of
+ *  tiles per task, and the output is written in one parallel pass over
+ *  bands of rows. The clip limit is a multiple of the mean bin count of a
+ *  tile: 1 gives no contrast change, and larger limits give more, up to
+ *  Double.POSITIVE_INFINITY for plain equalization per tile.
+ */
+public final class Clahe {
+    private static final int SCALE = 1 << 10;   // fixed-point one for the interpolation weights
+    private static final int ROWS = 16;         // rows per bulk read and write
+
+    private Clahe() { }
+
+   /**
+     * Return a copy of the picture equalized with a tilesX-by-tilesY grid
+     * of tiles and the given clip limit.
+     */
+    public static Picture equalize(Picture picture, int tilesX, int tilesY, double clipLimit) {
+        Picture result = picture.copy();
+        equalize(picture, result, tilesX, tilesY, clipLimit);
+        return result;
+    }
+
+   /**
+     * Equalize source with a tilesX-by-tilesY grid of tiles and the given clip
+     * limit, and write the result to target, which must have the same size
+     * and may be source itself.
+     */
+    public static void equalize(Picture source, Picture target, int tilesX, int tilesY, double clipLimit) {
+        final int w = source.width();
+        final int h = source.height();
+        if (target.width() != w || target.height() != h) {
+            throw new IllegalArgumentException("target must be " + w + "-by-" + h);
+        }
+        if (tilesX < 1 || tilesY < 1 || tilesX > w || tilesY > h) {
+            throw new IllegalArgumentException("need between 1 and " + w + "-by-" + h + " tiles");
+        }
+        if (!(clipLimit >= 1)) { throw new IllegalArgumentException("clip limit must be at least 1"); }
+
+        final int[] maps = maps(source, tilesX, tilesY, clipLimit);
+
+        // the tile to the upper left of each pixel, and the weight of the next one
+        final int[] tileX = new int[w], weightX = new int[w];
+        final int[] tileY = new int[h], weightY = new int[h];
+        interpolation(w, tilesX, tileX, weightX);
+        interpolation(h, tilesY, tileY, weightY);
+
+        Parallel.forRange(h, Math.max(ROWS, Parallel.grain(h)), (lo, hi) -> {
+            int[] buffer = new int[w * Math.min(ROWS, hi - lo)];
+            for (int y = lo; y < hi; y += ROWS) {
+                int rows = Math.min(ROWS, hi - y);
+                source.getRegion(0, y, w, rows, buffer);
+                for (int j = 0, k = 0; j < rows; j++) {
+                    int ty = tileY[y + j];
+                    int wy = weightY[y + j];
+                    int top    = ty * tilesX * 768;
+                    int bottom = Math.min(ty + 1, tilesY - 1) * tilesX * 768;
+                    for (int i = 0; i < w; i++, k++) {
+                        int tx = tileX[i];
+                        int wx = weightX[i];
+                        int left  = tx * 768;
+                        int right = Math.min(tx + 1, tilesX - 1) * 768;
+                        int rgb = buffer[k];
+                        int out = rgb & 0xFF000000;
+                        for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+                            int v = ((rgb >> shift) & 0xFF) + 256 * c;
+                            int upper = maps[top + left + v] * (SCALE - wx) + maps[top + right + v] * wx;
+                            int lower = maps[bottom + left + v] * (SCALE - wx) + maps[bottom + right + v] * wx;
+                            int mapped = (upper * (SCALE - wy) + lower * wy + SCALE * SCALE / 2) >> 20;
+                            out |= mapped << shift;
+                        }
+                        buffer[k] = out;
+                    }
+                }
+                target.setRegion(0, y, w, rows, buffer);
+            }
+        });
+    }
+
+    // the equalization tables of the tiles: element (ty*tilesX + tx)*768 + 256*c + v
+    // maps value v of channel c in tile (tx, ty)
+    private static int[] maps(Picture picture, int tilesX, int tilesY, double clipLimit) {
+        final int w = picture.width();
+        final int h = picture.height();
+        final int[] maps = new int[tilesY * tilesX * 768];
+        Parallel.forRange(tilesY, 1, (lo, hi) -> {
+            for (int ty = lo; ty < hi; ty++) {
+                int y0 = (int) ((long) ty * h / tilesY);
+                int y1 = (int) ((long) (ty + 1) * h / tilesY);
+                int[] counts = new int[tilesX * 768];
+                int[] row = new int[w];
+                for (int y = y0; y < y1; y++) {
+                    picture.getRow(y, row);
+                    for (int tx = 0; tx < tilesX; tx++) {
+                        int x0 = (int) ((long) tx * w / tilesX);
+                        int x1 = (int) ((long) (tx + 1) * w / tilesX);
+                        int base = tx * 768;
+                        for (int x = x0; x < x1; x++) {
+                            int rgb = row[x];
+                            counts[base +       ((rgb >> 16) & 0xFF)]++;
+                            counts[base + 256 + ((rgb >>  8) & 0xFF)]++;
+                            counts[base + 512 + ( rgb        & 0xFF)]++;
+                        }
+                    }
+                }
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int x0 = (int) ((long) tx * w / tilesX);
+                    int x1 = (int) ((long) (tx + 1) * w / tilesX);
+                    long pixels = (long) (x1 - x0) * (y1 - y0);
+                    for (int c = 0; c < 3; c++) {
+                        int base = tx * 768 + 256 * c;
+                        int[] map = Histogram.equalizer(clip(counts, base, pixels, clipLimit), pixels);
+                        System.arraycopy(map, 0, maps, ty * tilesX * 768 + base, 256);
+                    }
+                }
+            }
+        });
+        return maps;
+    }
+
+    // the cumulative histogram of counts[base..base+255] after clipping each
+    // bin at clipLimit times the mean and spreading the excess over all bins
+    private static long[] clip(int[] counts, int base, long pixels, double clipLimit) {
+        long limit = (long) Math.max(1, Math.min(pixels, clipLimit * pixels / 256));
+        long[] bins = new long[256];
+        long excess = 0;
+        for (int v = 0; v < 256; v++) {
+            long n = counts[base + v];
+            if (n > limit) { excess += n - limit; n = limit; }
+            bins[v] = n;
+        }
+        long each = excess / 256;
+        int rest = (int) (excess % 256);
+        long[] cdf = new long[256];
+        long sum = 0;
+        for (int v = 0; v < 256; v++) {
+            bins[v] += each;
+            if (rest > 0 && v % (256 / rest) == 0 && v / (256 / rest) < rest) { bins[v]++; }
+            sum += bins[v];
+            cdf[v] = sum;
+        }
+        return cdf;
+    }
+
+    // for each of n positions split into the given number of tiles, the tile
+    // whose center is at or before it and the fixed-point weight of the next
+    // tile; positions before the first center or after the last use one tile
+    private static void interpolation(int n, int tiles, int[] tile, int[] weight) {
+        for (int p = 0; p < n; p++) {
+            // position in units of tiles, measured from the first tile center
+            double t = (p + 0.5) * tiles / n - 0.5;
+            if (t <= 0) {
+                tile[p] = 0;
+                weight[p] = 0;
+            }
+            else if (t >= tiles - 1) {
+                tile[p] = tiles - 1;
+                weight[p] = 0;
+            }
+            else {
+                tile[p] = (int) t;
+                weight[p] = (int) Math.round((t - (int) t) * SCALE);
+            }
+        }
+    }
+
+
+   /**
+     * Test client. Equalizes the picture named by the first command-line
+     * argument with a tiles-by-tiles grid and the given clip limit, reports
+     * the time and shows the result.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        int tiles = Integer.parseInt(args[1]);
+        double clip = Double.parseDouble(args[2]);
+        long start = System.nanoTime();
+        Picture result = equalize(picture, tiles, tiles, clip);
+        System.out.printf("%d-by-%d: %.1f ms\n", picture.width(), picture.height(),
+                          (System.nanoTime() - start) / 1e6);
+        result.show();
+    }
+
+}
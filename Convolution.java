@@ -0,0 +1,405 @@
+/*************************************************************************
+ *  Compilation:  javac Convolution.java
+ *  Execution:    java Convolution imagename sigma
+ *
+ *  Immutable data type for 2D convolution kernels, such as the sharpen
+ *  and box blur kernels of Picture6, applied to the red, green and blue
+ *  channels of a picture. A kernel that is the outer product of a column
+ *  and a row (rank 1) is detected when it is created and applied as two
+ *  1D passes, so a k-by-k Gaussian costs 2k multiply-adds per pixel
+ *  instead of k^2.
+ *
+ *  % java Convolution lich.png 2.5
+ *
+ *  Remarks
+ *  -------
+ *   - pixels outside the picture take the value of the nearest edge pixel
+ *
+ *   - integer kernels are computed exactly and divided by their divisor
+ *     at the end, rounding down; float kernels are rounded to nearest
+ *
+ *   - the horizontal pass of a rank-1 integer kernel keeps its sums in
+ *     ints, so the kernel is applied in two passes only if 255 times the
+ *     sum of the absolute weights of its row fits in an int (and the
+ *     vertical sums then fit in a long); heavier kernels are applied in
+ *     one pass, with long sums, which gives the same result
+ *
+ *************************************************************************/
+
+import java.awt.image.BufferedImage;
+
+
+/**
+ *  This class provides convolution with an arbitrary kernel of odd width
+ *  and height. Each band of output rows is computed in parallel from a ring
+ *  of the source rows it needs, kept as one int or float array per channel,
+ *  so each source row is unpacked (and filtered horizontally, for a
+ *  separable kernel) once per band. The alpha channel is copied from the
+ *  source.
+ */
+public final class Convolution {
+    private final int kw, kh;           // kernel width and height, both odd
+    private final int rx, ry;           // kernel radii: kw = 2*rx + 1, kh = 2*ry + 1
+
+    // integer kernel: result = sum of weights times pixels, divided by divisor
+    private final int[] ints;           // weights, row-major, or null for a float kernel
+    private final long divisor;
+    private final int[] intRow;         // rank-1 factors, with ints[i*kw + j] * pivot
+    private final int[] intCol;         // equal to intCol[i] * intRow[j], or null
+    private final long intScale;        // divisor * pivot
+
+    // float kernel
+    private final float[] floats;       // weights, row-major, or null for an integer kernel
+    private final float[] floatRow;     // rank-1 factors, with floats[i*kw + j] close
+    private final float[] floatCol;     // to floatCol[i] * floatRow[j], or null
+
+   /**
+     * Create an integer kernel: each channel becomes the sum of the kernel
+     * weights times the pixels under it, divided by divisor and rounded down.
+     */
+    public Convolution(int[][] kernel, int divisor) {
+        if (divisor == 0) { throw new IllegalArgumentException("divisor must not be 0"); }
+        kh = kernel.length;
+        kw = (kh == 0) ? 0 : kernel[0].length;
+        validate(kw, kh);
+        rx = kw / 2;
+        ry = kh / 2;
+        ints = new int[kw * kh];
+        for (int i = 0; i < kh; i++) {
+            if (kernel[i].length != kw) { throw new IllegalArgumentException("kernel rows must have equal length"); }
+            System.arraycopy(kernel[i], 0, ints, i * kw, kw);
+        }
+        this.divisor = divisor;
+        floats = null;
+        floatRow = null;
+        floatCol = null;
+
+        // rank 1 iff every entry times the pivot is the product of its row and column entries
+        int pivot = 0, p = 0, q = 0;
+        for (int k = 0; k < ints.length; k++) {
+            if (Math.abs(ints[k]) > Math.abs(pivot)) { pivot = ints[k]; p = k / kw; q = k % kw; }
+        }
+        boolean separable = pivot != 0 && kw > 1 && kh > 1;
+        for (int i = 0; i < kh && separable; i++) {
+            for (int j = 0; j < kw && separable; j++) {
+                separable = (long) ints[i*kw + j] * pivot == (long) ints[i*kw + q] * ints[p*kw + j];
+            }
+        }
+        if (separable) {
+            // the horizontal sums are ints: keep them, and the vertical sums, from overflowing
+            long rowBound = 0, colBound = 0;
+            for (int j = 0; j < kw; j++) { rowBound += 255L * Math.abs((long) ints[p*kw + j]); }
+            for (int i = 0; i < kh; i++) { colBound += Math.abs((long) ints[i*kw + q]); }
+            separable = rowBound <= Integer.MAX_VALUE && colBound <= Long.MAX_VALUE / Math.max(1, rowBound);
+        }
+        if (separable) {
+            intRow = new int[kw];
+            intCol = new int[kh];
+            for (int j = 0; j < kw; j++) { intRow[j] = ints[p*kw + j]; }
+            for (int i = 0; i < kh; i++) { intCol[i] = ints[i*kw + q]; }
+            intScale = (long) divisor * pivot;
+        }
+        else {
+            intRow = null;
+            intCol = null;
+            intScale = divisor;
+        }
+    }
+
+   /**
+     * Create a float kernel: each channel becomes the sum of the kernel
+     * weights times the pixels under it, rounded to the nearest integer.
+     */
+    public Convolution(double[][] kernel) {
+        kh = kernel.length;
+        kw = (kh == 0) ? 0 : kernel[0].length;
+        validate(kw, kh);
+        rx = kw / 2;
+        ry = kh / 2;
+        floats = new float[kw * kh];
+        double max = 0;
+        int p = 0, q = 0;
+        for (int i = 0; i < kh; i++) {
+            if (kernel[i].length != kw) { throw new IllegalArgumentException("kernel rows must have equal length"); }
+            for (int j = 0; j < kw; j++) {
+                if (Double.isNaN(kernel[i][j]) || Double.isInfinite(kernel[i][j])) {
+                    throw new IllegalArgumentException("kernel entries must be finite");
+                }
+                floats[i*kw + j] = (float) kernel[i][j];
+                if (Math.abs(kernel[i][j]) > max) { max = Math.abs(kernel[i][j]); p = i; q = j; }
+            }
+        }
+        ints = null;
+        intRow = null;
+        intCol = null;
+        divisor = 1;
+        intScale = 1;
+
+        // rank 1 iff kernel[i][j] = kernel[i][q] * kernel[p][j] / kernel[p][q], up to rounding
+        boolean separable = max > 0 && kw > 1 && kh > 1;
+        double pivot = (max > 0) ? kernel[p][q] : 1;
+        for (int i = 0; i < kh && separable; i++) {
+            for (int j = 0; j < kw && separable; j++) {
+                double product = kernel[i][q] * kernel[p][j] / pivot;
+                separable = Math.abs(kernel[i][j] - product) <= 1e-6 * max;
+            }
+        }
+        if (separable) {
+            floatRow = new float[kw];
+            floatCol = new float[kh];
+            for (int j = 0; j < kw; j++) { floatRow[j] = (float) (kernel[p][j] / pivot); }
+            for (int i = 0; i < kh; i++) { floatCol[i] = (float) kernel[i][q]; }
+        }
+        else {
+            floatRow = null;
+            floatCol = null;
+        }
+    }
+
+   /**
+     * Return a size-by-size Gaussian blur kernel with the given standard
+     * deviation, normalized to sum to 1. The size must be odd.
+     */
+    public static Convolution gaussian(int size, double sigma) {
+        if (size < 1 || size % 2 == 0) { throw new IllegalArgumentException("size must be odd and positive"); }
+        if (!(sigma > 0))              { throw new IllegalArgumentException("sigma must be positive"); }
+        int r = size / 2;
+        double[] g = new double[size];
+        double sum = 0;
+        for (int k = -r; k <= r; k++) {
+            g[k + r] = Math.exp(-k * k / (2 * sigma * sigma));
+            sum += g[k + r];
+        }
+        double[][] kernel = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) { kernel[i][j] = g[i] * g[j] / (sum * sum); }
+        }
+        return new Convolution(kernel);
+    }
+
+   /**
+     * Return a Gaussian blur kernel with the given standard deviation,
+     * 2*ceil(3*sigma) + 1 pixels across.
+     */
+    public static Convolution gaussian(double sigma) {
+        return gaussian(2 * (int) Math.ceil(3 * sigma) + 1, sigma);
+    }
+
+   /**
+     * Return the size-by-size box blur kernel, which averages the pixels
+     * under it, as Picture6's smoothing does for size 3.
+     */
+    public static Convolution box(int size) {
+        int[][] kernel = new int[size][size];
+        for (int[] row : kernel) { java.util.Arrays.fill(row, 1); }
+        return new Convolution(kernel, size * size);
+    }
+
+   /**
+     * Return Picture6's 3-by-3 sharpening kernel: 9 times the pixel minus its
+     * eight neighbors.
+     */
+    public static Convolution sharpen() {
+        return new Convolution(new int[][] { { -1, -1, -1 },
+                                             { -1,  9, -1 },
+                                             { -1, -1, -1 } }, 1);
+    }
+
+   /**
+     * Is this kernel applied as two 1D passes?
+     */
+    public boolean isSeparable() {
+        return intRow != null || floatRow != null;
+    }
+
+   /**
+     * Return the number of multiply-adds per channel per pixel.
+     */
+    public int cost() {
+        return isSeparable() ? kw + kh : kw * kh;
+    }
+
+   /**
+     * Return the picture convolved with this kernel, as a new picture of the
+     * same size with a gray raster if the picture is gray.
+     */
+    public Picture apply(Picture picture) {
+        Picture result = blank(picture);
+        apply(picture, result);
+        return result;
+    }
+
+    // a new blank picture the size of the given one, gray if it is gray and
+    // with an alpha channel if it has one
+    static Picture blank(Picture picture) {
+        int w = picture.width();
+        int h = picture.height();
+        if (picture.isGray())   { return Picture.gray(w, h); }
+        if (picture.hasAlpha()) { return new Picture(new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB)); }
+        return new Picture(w, h);
+    }
+
+   /**
+     * Write source convolved with this kernel to target, which must have the
+     * same size and can't be source.
+     */
+    public void apply(Picture source, Picture target) {
+        final int w = source.width();
+        final int h = source.height();
+        if (target.width() != w || target.height() != h) {
+            throw new IllegalArgumentException("target must be " + w + "-by-" + h);
+        }
+        if (target == source) { throw new IllegalArgumentException("can't convolve a picture in place"); }
+        Parallel.forRange(h, Math.max(16, Parallel.grain(h)), (lo, hi) -> new Band(source, w, h).run(lo, hi, target));
+    }
+
+    // one band of output rows, with a ring of the kh source rows it needs
+    private final class Band {
+        private final Picture source;
+        private final int w, h;
+        private final int[] packed;         // a packed source or output row
+        private final int[] padded;         // one channel of a source row, with rx edge pixels each side
+        private final int[][][] intRing;    // [slot][channel][x]: padded source rows or horizontal sums
+        private final float[][][] floatRing;
+        private final int[] alpha;          // alpha of the source rows, by slot
+
+        Band(Picture source, int w, int h) {
+            this.source = source;
+            this.w = w;
+            this.h = h;
+            packed = new int[w];
+            padded = new int[w + 2*rx];
+            int length = isSeparable() ? w : w + 2*rx;
+            if (ints != null) { intRing = new int[kh][3][length]; floatRing = null; }
+            else              { floatRing = new float[kh][3][length]; intRing = null; }
+            alpha = new int[kh * w];
+        }
+
+        void run(int lo, int hi, Picture target) {
+            for (int y = lo - ry; y < lo + ry; y++) { load(y); }
+            for (int y = lo; y < hi; y++) {
+                load(y + ry);
+                int a = slot(y) * w;
+                for (int x = 0; x < w; x++) { packed[x] = alpha[a + x]; }
+                for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+                    if (ints != null) { intRow(y, c, shift); }
+                    else              { floatRow(y, c, shift); }
+                }
+                target.setRow(y, packed);
+            }
+        }
+
+        private int slot(int y) {
+            return Math.floorMod(y, kh);
+        }
+
+        // unpack source row y (clamped to the picture) into its ring slot,
+        // filtering it horizontally if the kernel is separable
+        private void load(int y) {
+            source.getRow(Math.min(h - 1, Math.max(0, y)), packed);
+            int s = slot(y);
+            for (int x = 0; x < w; x++) { alpha[s*w + x] = packed[x] & 0xFF000000; }
+            for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+                for (int x = 0; x < w; x++) { padded[rx + x] = (packed[x] >> shift) & 0xFF; }
+                for (int x = 0; x < rx; x++) {
+                    padded[x] = padded[rx];
+                    padded[rx + w + x] = padded[rx + w - 1];
+                }
+                if (ints != null) {
+                    int[] dst = intRing[s][c];
+                    if (intRow == null) { System.arraycopy(padded, 0, dst, 0, padded.length); continue; }
+                    for (int x = 0; x < w; x++) {
+                        int sum = 0;
+                        for (int j = 0; j < kw; j++) { sum += intRow[j] * padded[x + j]; }
+                        dst[x] = sum;
+                    }
+                }
+                else {
+                    float[] dst = floatRing[s][c];
+                    if (floatRow == null) {
+                        for (int x = 0; x < padded.length; x++) { dst[x] = padded[x]; }
+                        continue;
+                    }
+                    for (int x = 0; x < w; x++) {
+                        float sum = 0;
+                        for (int j = 0; j < kw; j++) { sum += floatRow[j] * padded[x + j]; }
+                        dst[x] = sum;
+                    }
+                }
+            }
+        }
+
+        // channel c of output row y from the integer ring, or'ed into packed
+        private void intRow(int y, int c, int shift) {
+            long[] sums = new long[w];
+            for (int i = 0; i < kh; i++) {
+                int[] src = intRing[slot(y - ry + i)][c];
+                if (intCol != null) {
+                    long weight = intCol[i];
+                    for (int x = 0; x < w; x++) { sums[x] += weight * src[x]; }
+                }
+                else {
+                    for (int j = 0; j < kw; j++) {
+                        long weight = ints[i*kw + j];
+                        if (weight == 0) { continue; }
+                        for (int x = 0; x < w; x++) { sums[x] += weight * src[x + j]; }
+                    }
+                }
+            }
+            for (int x = 0; x < w; x++) {
+                packed[x] |= clamp(Math.floorDiv(sums[x], intScale)) << shift;
+            }
+        }
+
+        // channel c of output row y from the float ring, or'ed into packed
+        private void floatRow(int y, int c, int shift) {
+            float[] sums = new float[w];
+            for (int i = 0; i < kh; i++) {
+                float[] src = floatRing[slot(y - ry + i)][c];
+                if (floatCol != null) {
+                    float weight = floatCol[i];
+                    for (int x = 0; x < w; x++) { sums[x] += weight * src[x]; }
+                }
+                else {
+                    for (int j = 0; j < kw; j++) {
+                        float weight = floats[i*kw + j];
+                        if (weight == 0) { continue; }
+                        for (int x = 0; x < w; x++) { sums[x] += weight * src[x + j]; }
+                    }
+                }
+            }
+            for (int x = 0; x < w; x++) {
+                packed[x] |= clamp(Math.round(sums[x])) << shift;
+            }
+        }
+    }
+
+    private static void validate(int kw, int kh) {
+        if (kw < 1 || kh < 1 || kw % 2 == 0 || kh % 2 == 0) {
+            throw new IllegalArgumentException("kernel width and height must be odd and positive");
+        }
+    }
+
+    private static int clamp(long v) {
+        if (v < 0)   { return 0;   }
+        if (v > 255) { return 255; }
+        return (int) v;
+    }
+
+
+   /**
+     * Test client. Blurs the picture named by the first command-line argument
+     * with a Gaussian of the given standard deviation, reports the time and
+     * the multiply-adds per pixel, and shows the result.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        Convolution gaussian = gaussian(Double.parseDouble(args[1]));
+        long start = System.nanoTime();
+        Picture blurred = gaussian.apply(picture);
+        System.out.printf("%d multiply-adds per pixel, %.1f ms\n", gaussian.cost(),
+                          (System.nanoTime() - start) / 1e6);
+        blurred.show();
+    }
+
+}
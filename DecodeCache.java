@@ -0,0 +1,161 @@
+/*************************************************************************
+ *  Compilation:  javac DecodeCache.java
+ *  Execution:    java DecodeCache imagename n
+ *
+ *  On-disk cache of decoded pictures. The first load of an image file
+ *  decodes it and writes its pixels to a raster file in the cache
+ *  directory; later loads of the same, unchanged file memory-map that
+ *  raster instead of decoding again.
+ *
+ *  % java DecodeCache lich.png 1000
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ *  This class provides a decode-once cache for image files. load() keys
+ *  each file by its canonical path, length and modification time, so an
+ *  edited file is decoded again and its stale raster removed. Cached
+ *  rasters are files created by MappedDataBuffer, mapped with
+ *  MapMode.PRIVATE: the returned picture can be changed freely without
+ *  touching the cache. Pixels are stored packed, 4 bytes each, whatever
+ *  the storage of the decoded picture. Rasters are written to a temporary
+ *  file and renamed into place, so processes can share a cache directory.
+ */
+public final class DecodeCache {
+    private static final String SUFFIX = ".pxm";    // suffix of cached raster files
+    private final File directory;                   // where the rasters are kept
+
+   /**
+     * Create a cache that keeps its rasters in the given directory, creating
+     * the directory if needed.
+     */
+    public DecodeCache(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Could not create cache directory: " + directory);
+        }
+        this.directory = directory;
+    }
+
+   /**
+     * Create a cache in the picture-cache directory under java.io.tmpdir.
+     */
+    public DecodeCache() {
+        this(new File(System.getProperty("java.io.tmpdir"), "picture-cache"));
+    }
+
+   /**
+     * Load the image file with the given name, decoding it only if the cache
+     * has no raster for its current contents.
+     */
+    public Picture load(String filename) {
+        return load(new File(filename));
+    }
+
+   /**
+     * Load the given image file, decoding it only if the cache has no raster
+     * for its current contents.
+     */
+    public Picture load(File file) {
+        if (!file.isFile()) { throw new RuntimeException("Could not open file: " + file); }
+        String path;
+        try { path = file.getCanonicalPath(); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + file);
+        }
+        String prefix = hash(path) + "-";
+        File cached = new File(directory, prefix + hash(file.length() + ":" + file.lastModified()) + SUFFIX);
+
+        if (!cached.isFile()) { store(file, prefix, cached); }
+        return Picture.map(cached, FileChannel.MapMode.PRIVATE);
+    }
+
+   /**
+     * Remove every raster from the cache.
+     */
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files == null) { return; }
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)) { f.delete(); }
+        }
+    }
+
+    // decode the file into a new raster, then drop rasters of older versions
+    private void store(File file, String prefix, File cached) {
+        Picture picture = new Picture(file);
+        int w = picture.width();
+        int h = picture.height();
+        boolean alpha = picture.hasAlpha();
+        File temp = null;
+        try {
+            temp = File.createTempFile(prefix, ".tmp", directory);
+            MappedDataBuffer raster = MappedDataBuffer.create(temp, w, h, alpha);
+            int[] row = new int[w];
+            for (int j = 0; j < h; j++) {
+                raster.setElems(j * w, picture.getRow(j, row), 0, w);
+            }
+            Files.move(temp.toPath(), cached.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            if (temp != null) { temp.delete(); }
+            throw new RuntimeException("Could not cache file: " + file + " (" + e.getMessage() + ")");
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) { return; }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(prefix) && name.endsWith(SUFFIX) && !name.equals(cached.getName())) {
+                f.delete();
+            }
+        }
+    }
+
+    // the first 16 hex digits of the SHA-256 digest of s
+    private static String hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int k = 0; k < 8; k++) {
+                hex.append(String.format("%02x", digest[k] & 0xFF));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+   /**
+     * Test client. Loads the picture named by the first command-line argument
+     * n times through a cache and reports the time of the first load and the
+     * average time of the rest.
+     */
+    public static void main(String[] args) {
+        DecodeCache cache = new DecodeCache();
+        int n = Integer.parseInt(args[1]);
+        long start = System.nanoTime();
+        Picture picture = cache.load(args[0]);
+        long first = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int k = 1; k < n; k++) {
+            picture = cache.load(args[0]);
+        }
+        long rest = System.nanoTime() - start;
+        System.out.printf("%d-by-%d: first load %.2f ms, then %.3f ms per load\n",
+                          picture.width(), picture.height(), first / 1e6, rest / 1e6 / Math.max(1, n - 1));
+    }
+
+}
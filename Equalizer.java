@@ -0,0 +1,73 @@
+/*************************************************************************
+ *  Compilation:  javac Equalizer.java
+ *  Execution:    java Equalizer input.ppm output.ppm
+ *
+ *  Histogram equalization, as in Picture7, for images too large to hold
+ *  in memory. The first pass reads the image a row or band at a time to
+ *  count its histograms; the second reads it again, remaps each row
+ *  through the equalization tables and writes it out at once, so memory
+ *  use is bounded by one band whatever the size of the image.
+ *
+ *  % java Equalizer scan.ppm scan-equalized.ppm
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ *  This class provides two-pass streaming histogram equalization. The
+ *  file version streams PNM or raw rows from one file to another through
+ *  Pnm.Reader and Pnm.Writer. The picture version works band by band in
+ *  parallel, and is meant for mapped or tiled pictures (see Picture.map()
+ *  and Picture.tiled()), whose pixels stay on disk.
+ */
+public final class Equalizer {
+
+    private Equalizer() { }
+
+   /**
+     * Equalize the red, green and blue histograms of the image in the input
+     * PBM, PGM or PPM file and write the result to the output file, in the
+     * format named by its suffix. The input is read twice, one row at a time.
+     */
+    public static void equalize(File input, File output) throws IOException {
+        Histogram histogram;
+        try (Pnm.Reader reader = new Pnm.Reader(input)) {
+            histogram = Histogram.of(reader);
+        }
+        PointOp op = histogram.equalization();
+        try (Pnm.Reader reader = new Pnm.Reader(input);
+             Pnm.Writer writer = new Pnm.Writer(output, reader.width(), reader.height())) {
+            int w = reader.width();
+            int[] row = new int[w];
+            for (int j = 0; j < reader.height(); j++) {
+                reader.readRow(row);
+                op.apply(row, 0, w);
+                writer.writeRow(row);
+            }
+        }
+    }
+
+   /**
+     * Equalize the red, green and blue histograms of source and write the
+     * result to target, which must have the same size and may be source
+     * itself. Both passes read source in bands of rows, in parallel.
+     */
+    public static void equalize(Picture source, Picture target) {
+        source.histogram().equalization().apply(source, target);
+    }
+
+
+   /**
+     * Test client. Equalizes the PNM file named by the first command-line
+     * argument into the file named by the second, and reports the time.
+     */
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        equalize(new File(args[0]), new File(args[1]));
+        System.out.printf("%s: %.1f ms\n", args[1], (System.nanoTime() - start) / 1e6);
+    }
+
+}
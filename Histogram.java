@@ -0,0 +1,257 @@
+/*************************************************************************
+ *  Compilation:  javac Histogram.java
+ *  Execution:    java Histogram imagename
+ *
+ *  Immutable data type for the red, green, blue and luminance histograms
+ *  of a picture. The rows are split into bands that are counted in
+ *  parallel, each into its own private histogram, and the band
+ *  histograms are added up at the end.
+ *
+ *  % java Histogram lich.png
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ *  This class provides the histograms of a picture: for each channel, the
+ *  number of pixels with each value from 0 to 255. Counts are longs, so
+ *  pictures of any size can be counted. Luminance is the Rec. 601 weighted
+ *  sum (77 r + 150 g + 29 b) / 256, rounded. joint() counts pairs of
+ *  channel values, such as red against green.
+ */
+public final class Histogram {
+    public static final int RED       = 0;
+    public static final int GREEN     = 1;
+    public static final int BLUE      = 2;
+    public static final int LUMINANCE = 3;
+
+    private static final int PAD = 16;  // ints of padding around each band's counts,
+                                        // so bands never write to a shared cache line
+
+    private final long[][] counts;      // counts[channel][value]
+    private final long total;           // number of pixels counted
+
+    private Histogram(long[][] counts, long total) {
+        this.counts = counts;
+        this.total  = total;
+    }
+
+   /**
+     * Compute the histograms of the given picture.
+     */
+    public static Histogram of(Picture picture) {
+        final int w = picture.width();
+        final int h = picture.height();
+        final int grain = Parallel.grain(h);
+        final int bands = (h + grain - 1) / grain;
+        final int[][] partial = new int[bands][];
+        Parallel.forRange(h, grain, (lo, hi) -> {
+            int[] local = new int[PAD + 4 * 256 + PAD];
+            int[] row = new int[w];
+            for (int j = lo; j < hi; j++) {
+                count(picture.getRow(j, row), w, local);
+            }
+            partial[lo / grain] = local;
+        });
+
+        long[][] counts = new long[4][256];
+        for (int[] local : partial) {
+            if (local != null) { add(local, counts); }
+        }
+        return new Histogram(counts, (long) w * h);
+    }
+
+   /**
+     * Compute the histograms of the image in a PNM or raw file by reading
+     * every row from the given reader, one at a time, so that memory use
+     * doesn't depend on the size of the image.
+     */
+    public static Histogram of(Pnm.Reader reader) throws IOException {
+        int w = reader.width();
+        int[] row = new int[w];
+        int[] local = new int[PAD + 4 * 256 + PAD];
+        long[][] counts = new long[4][256];
+        long total = 0;
+        long pending = 0;       // pixels in local since it was last emptied
+        for (int j = 0; j < reader.height(); j++) {
+            count(reader.readRow(row), w, local);
+            total += w;
+            pending += w;
+            // move the int counts into the longs before they can overflow
+            if (pending > Integer.MAX_VALUE - w) {
+                add(local, counts);
+                Arrays.fill(local, 0);
+                pending = 0;
+            }
+        }
+        add(local, counts);
+        return new Histogram(counts, total);
+    }
+
+   /**
+     * Return the joint histogram of two channels of the picture: element
+     * [x][y] counts the pixels whose channelX value is x and whose channelY
+     * value is y. The channels are RED, GREEN, BLUE or LUMINANCE.
+     */
+    public static long[][] joint(Picture picture, int channelX, int channelY) {
+        validate(channelX);
+        validate(channelY);
+        final int w = picture.width();
+        final int h = picture.height();
+        // each band holds 256 KB of counts, so use one band per processor
+        final int grain = Math.max(1, (h + Runtime.getRuntime().availableProcessors() - 1)
+                                      / Runtime.getRuntime().availableProcessors());
+        final int bands = (h + grain - 1) / grain;
+        final int[][] partial = new int[bands][];
+        Parallel.forRange(h, grain, (lo, hi) -> {
+            int[] local = new int[PAD + 256 * 256 + PAD];
+            int[] row = new int[w];
+            for (int j = lo; j < hi; j++) {
+                picture.getRow(j, row);
+                for (int i = 0; i < w; i++) {
+                    local[PAD + 256 * value(row[i], channelX) + value(row[i], channelY)]++;
+                }
+            }
+            partial[lo / grain] = local;
+        });
+
+        long[][] counts = new long[256][256];
+        for (int[] local : partial) {
+            if (local == null) { continue; }
+            for (int x = 0; x < 256; x++) {
+                for (int y = 0; y < 256; y++) { counts[x][y] += local[PAD + 256*x + y]; }
+            }
+        }
+        return counts;
+    }
+
+   /**
+     * Return the number of pixels counted.
+     */
+    public long total() {
+        return total;
+    }
+
+   /**
+     * Return the number of pixels whose value in the given channel is v.
+     */
+    public long count(int channel, int v) {
+        validate(channel);
+        if (v < 0 || v > 255) { throw new IndexOutOfBoundsException("value " + v + " is not in [0, 255]"); }
+        return counts[channel][v];
+    }
+
+   /**
+     * Return the 256 counts of the given channel.
+     */
+    public long[] counts(int channel) {
+        validate(channel);
+        return counts[channel].clone();
+    }
+
+   /**
+     * Return the cumulative counts of the given channel: element v is the
+     * number of pixels whose value is at most v.
+     */
+    public long[] cdf(int channel) {
+        validate(channel);
+        long[] cdf = new long[256];
+        long sum = 0;
+        for (int v = 0; v < 256; v++) {
+            sum += counts[channel][v];
+            cdf[v] = sum;
+        }
+        return cdf;
+    }
+
+   /**
+     * Return the 256-entry histogram equalization table of the given
+     * channel: v maps to (cdf[v] - cdf[0]) * 255 / (total - 1), rounded
+     * down, as in Picture7.
+     */
+    public int[] equalizer(int channel) {
+        return equalizer(cdf(channel), total);
+    }
+
+    // the equalization table of a cumulative histogram of total pixels
+    static int[] equalizer(long[] cdf, long total) {
+        int[] map = new int[256];
+        if (total <= 1) {
+            for (int v = 0; v < 256; v++) { map[v] = v; }
+            return map;
+        }
+        for (int v = 0; v < 256; v++) {
+            map[v] = (int) ((cdf[v] - cdf[0]) * 255 / (total - 1));
+        }
+        return map;
+    }
+
+   /**
+     * Return the point operation that equalizes the red, green and blue
+     * histograms independently, as Picture7 does.
+     */
+    public PointOp equalization() {
+        return PointOp.lut(equalizer(RED), equalizer(GREEN), equalizer(BLUE));
+    }
+
+    // count the first n pixels of row into the padded counts of one band
+    private static void count(int[] row, int n, int[] local) {
+        for (int i = 0; i < n; i++) {
+            int rgb = row[i];
+            int r = (rgb >> 16) & 0xFF;
+            int g = (rgb >>  8) & 0xFF;
+            int b =  rgb        & 0xFF;
+            local[PAD + r]++;
+            local[PAD + 256 + g]++;
+            local[PAD + 512 + b]++;
+            local[PAD + 768 + ((77*r + 150*g + 29*b + 128) >> 8)]++;
+        }
+    }
+
+    // add the padded counts of one band to the totals
+    private static void add(int[] local, long[][] counts) {
+        for (int c = 0; c < 4; c++) {
+            for (int v = 0; v < 256; v++) { counts[c][v] += local[PAD + 256*c + v]; }
+        }
+    }
+
+    // the value of the given channel of a packed rgb int
+    static int value(int rgb, int channel) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >>  8) & 0xFF;
+        int b =  rgb        & 0xFF;
+        if (channel == RED)   { return r; }
+        if (channel == GREEN) { return g; }
+        if (channel == BLUE)  { return b; }
+        return (77*r + 150*g + 29*b + 128) >> 8;
+    }
+
+    private static void validate(int channel) {
+        if (channel < RED || channel > LUMINANCE) {
+            throw new IllegalArgumentException("unknown channel " + channel);
+        }
+    }
+
+
+   /**
+     * Test client. Computes the histograms of the picture named by the first
+     * command-line argument, prints the luminance histogram, equalizes the
+     * picture and shows it.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        long start = System.nanoTime();
+        Histogram histogram = picture.histogram();
+        long elapsed = System.nanoTime() - start;
+        for (int v = 0; v < 256; v++) {
+            System.out.println(v + " " + histogram.count(LUMINANCE, v));
+        }
+        System.out.printf("%d pixels in %.1f ms\n", histogram.total(), elapsed / 1e6);
+        histogram.equalization().apply(picture);
+        picture.show();
+    }
+
+}
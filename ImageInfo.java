@@ -0,0 +1,136 @@
+/*************************************************************************
+ *  Compilation:  javac ImageInfo.java
+ *  Execution:    java ImageInfo imagename ...
+ *
+ *  Immutable data type for the dimensions, format and number of bands of
+ *  an image file, read from the file header without decoding any pixels.
+ *
+ *  % java ImageInfo lich.png
+ *  lich.png: png 512-by-512, 3 bands
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+
+/**
+ *  This class provides a header-only probe of an image file: it asks the
+ *  ImageReader for the width, height and image type of the first image,
+ *  which reads just the header, instead of decoding the whole image as
+ *  new Picture(filename) does.
+ */
+public final class ImageInfo {
+    private final int width;            // width of the image (in pixels)
+    private final int height;           // height of the image (in pixels)
+    private final String format;        // format name, such as "png" or "JPEG"
+    private final int bands;            // number of bands, such as 3 for RGB
+
+    private ImageInfo(int width, int height, String format, int bands) {
+        this.width  = width;
+        this.height = height;
+        this.format = format;
+        this.bands  = bands;
+    }
+
+   /**
+     * Probe a .png, .gif, or .jpg from the given filename or URL name.
+     */
+    public static ImageInfo probe(String filename) {
+        try {
+            File file = new File(filename);
+            if (file.isFile()) { return read(file, filename); }
+            URL url = ImageInfo.class.getResource(filename);
+            if (url == null) { url = new URL(filename); }
+            try (InputStream in = url.openStream()) {
+                return read(in, filename);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + filename);
+        }
+    }
+
+   /**
+     * Probe a .png, .gif, or .jpg from a File.
+     */
+    public static ImageInfo probe(File file) {
+        try { return read(file, file.toString()); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + file);
+        }
+    }
+
+    // read the header of the first image in source
+    private static ImageInfo read(Object source, String name) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(source);
+        if (input == null) { throw new RuntimeException("Could not open file: " + name); }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) { throw new RuntimeException("Invalid image file: " + name); }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageTypeSpecifier type = reader.getRawImageType(0);
+                if (type == null) { type = reader.getImageTypes(0).next(); }
+                return new ImageInfo(reader.getWidth(0), reader.getHeight(0),
+                                     reader.getFormatName(), type.getNumBands());
+            }
+            finally { reader.dispose(); }
+        }
+        finally { input.close(); }
+    }
+
+   /**
+     * Return the width of the image (in pixels).
+     */
+    public int width() {
+        return width;
+    }
+
+   /**
+     * Return the height of the image (in pixels).
+     */
+    public int height() {
+        return height;
+    }
+
+   /**
+     * Return the name of the image format, as reported by its ImageReader.
+     */
+    public String format() {
+        return format;
+    }
+
+   /**
+     * Return the number of bands, such as 1 for gray, 3 for RGB or 4 for ARGB.
+     */
+    public int bands() {
+        return bands;
+    }
+
+   /**
+     * Return a string representation of the form "png 512-by-512, 3 bands".
+     */
+    public String toString() {
+        return format + " " + width + "-by-" + height + ", " + bands + (bands == 1 ? " band" : " bands");
+    }
+
+
+   /**
+     * Test client. Probes each image named on the command line.
+     */
+    public static void main(String[] args) {
+        for (String filename : args) {
+            System.out.println(filename + ": " + probe(filename));
+        }
+    }
+
+}
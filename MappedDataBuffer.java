@@ -0,0 +1,154 @@
+/*************************************************************************
+ *  Compilation:  javac MappedDataBuffer.java
+ *
+ *  A DataBuffer of packed int pixels that lives in a memory-mapped file
+ *  instead of on the Java heap. Used by Picture.map() to hold images too
+ *  large for the heap.
+ *
+ *  File layout
+ *  -----------
+ *   - 16 byte header: magic "PXM1", width, height, flags (big-endian ints)
+ *   - width*height pixels as 0xAARRGGBB ints in row-major order, in the
+ *     byte order given by the flags; the alpha byte is ignored unless the
+ *     alpha flag is set
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ *  This class provides a DataBuffer whose elements are stored in a
+ *  memory-mapped file, so a raster of any size uses a fixed amount of heap.
+ *  The file is mapped in chunks of 2^27 ints, since a single mapping is
+ *  limited to 2 GB.
+ */
+public final class MappedDataBuffer extends PackedDataBuffer {
+    private static final int HEADER = 16;         // bytes before the first pixel
+    private static final int MAGIC = 0x50584D31;  // "PXM1"
+    private static final int ALPHA = 1;           // flag: pixels have alpha
+    private static final int LITTLE_ENDIAN = 2;   // flag: pixels are little-endian
+    private static final int SHIFT = 27;          // log2 of ints per mapping
+    private static final int MASK = (1 << SHIFT) - 1;
+
+    private final IntBuffer[] chunks;   // the mapped pixels, 2^SHIFT ints per chunk
+    private final int width;            // width of the raster
+    private final int height;           // height of the raster
+    private final boolean alpha;        // do pixels have alpha?
+
+    private MappedDataBuffer(IntBuffer[] chunks, int width, int height, boolean alpha) {
+        super(width * height);
+        this.chunks = chunks;
+        this.width  = width;
+        this.height = height;
+        this.alpha  = alpha;
+    }
+
+   /**
+     * Create a new w-by-h file, replacing any existing one, and map it.
+     */
+    public static MappedDataBuffer create(File file, int w, int h, boolean alpha) throws IOException {
+        if (w <= 0 || h <= 0 || (long) w * h > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("can't map a " + w + "-by-" + h + " raster");
+        }
+        int flags = alpha ? ALPHA : 0;
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) { flags |= LITTLE_ENDIAN; }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(HEADER + 4L * w * h);
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(w).putInt(h).putInt(flags).flip();
+            raf.getChannel().write(header, 0);
+            return map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, w, h, flags);
+        }
+    }
+
+   /**
+     * Map an existing file created by create(). With MapMode.PRIVATE, writes
+     * go to a private copy of the touched pages and never reach the file.
+     */
+    public static MappedDataBuffer open(File file, FileChannel.MapMode mode) throws IOException {
+        String access = (mode == FileChannel.MapMode.READ_ONLY) ? "r" : "rw";
+        try (RandomAccessFile raf = new RandomAccessFile(file, access)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            raf.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+                throw new IOException("not a mapped raster file: " + file);
+            }
+            int w = header.getInt();
+            int h = header.getInt();
+            int flags = header.getInt();
+            if (w > 0 && h > 0 && (long) w * h > Integer.MAX_VALUE) {
+                throw new IOException("mapped raster too large: " + w + "-by-" + h + " in " + file);
+            }
+            if (w <= 0 || h <= 0 || raf.length() < HEADER + 4L * w * h) {
+                throw new IOException("truncated mapped raster file: " + file);
+            }
+            return map(raf.getChannel(), mode, w, h, flags);
+        }
+    }
+
+    // map the pixels of an open file in chunks of 2^SHIFT ints
+    private static MappedDataBuffer map(FileChannel channel, FileChannel.MapMode mode,
+                                        int w, int h, int flags) throws IOException {
+        ByteOrder order = ((flags & LITTLE_ENDIAN) != 0) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        long n = (long) w * h;
+        IntBuffer[] chunks = new IntBuffer[(int) ((n + MASK) >>> SHIFT)];
+        for (int c = 0; c < chunks.length; c++) {
+            long first = (long) c << SHIFT;
+            long count = Math.min(n - first, 1L << SHIFT);
+            chunks[c] = channel.map(mode, HEADER + 4 * first, 4 * count).order(order).asIntBuffer();
+        }
+        return new MappedDataBuffer(chunks, w, h, (flags & ALPHA) != 0);
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    @Override
+    public int getElem(int bank, int i) {
+        return chunks[i >>> SHIFT].get(i & MASK);
+    }
+
+    @Override
+    public void setElem(int bank, int i, int val) {
+        chunks[i >>> SHIFT].put(i & MASK, val);
+    }
+
+    @Override
+    public void getElems(int i, int[] dst, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, (1 << SHIFT) - (i & MASK));
+            chunks[i >>> SHIFT].get(i & MASK, dst, off, n);
+            i += n; off += n; len -= n;
+        }
+    }
+
+    @Override
+    public void setElems(int i, int[] src, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, (1 << SHIFT) - (i & MASK));
+            chunks[i >>> SHIFT].put(i & MASK, src, off, n);
+            i += n; off += n; len -= n;
+        }
+    }
+}
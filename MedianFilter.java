@@ -0,0 +1,379 @@
+/*************************************************************************
+ *  Compilation:  javac MedianFilter.java
+ *  Execution:    java MedianFilter imagename radius
+ *
+ *  Median filter of any radius in roughly constant time per pixel, after
+ *  Perreault and Hebert, "Median Filtering in Constant Time" (2007). Each
+ *  output pixel gets, in each channel, the median of the (2r+1)-by-(2r+1)
+ *  square around it, as the speckle removal of Picture6 does for r = 1.
+ *  Instead of sorting the square for every pixel, the filter keeps a
+ *  histogram of each column of the window, updated by one pixel in and
+ *  one out per row, and a histogram of the whole window, updated by one
+ *  column histogram in and one out per pixel.
+ *
+ *  % java MedianFilter scan.png 7
+ *
+ *  Remarks
+ *  -------
+ *   - pixels outside the picture take the value of the nearest edge pixel
+ *
+ *   - the radius is at most 23169, the largest for which the window
+ *     area (2r+1)^2 fits in an int
+ *
+ *   - each histogram is split into 16 coarse bins of 16 values each and
+ *     256 fine bins; the window adds up only the coarse bins per pixel,
+ *     and brings a group of 16 fine bins up to date only when the median
+ *     falls in it
+ *
+ *   - radius 1 and 2 (3x3 and 5x5) use sorting networks instead, which
+ *     are faster for windows that small: each column of the window is
+ *     sorted once per row, and the windows over it pick their median out
+ *     of the sorted columns with a fixed sequence of min/max exchanges
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+
+
+/**
+ *  This class provides the median filter of the red, green and blue
+ *  channels, with the alpha channel copied from the source; a gray picture
+ *  is filtered once instead of three times. Bands of rows are filtered in
+ *  parallel, one channel at a time, with 16-bit column histograms (544
+ *  bytes per column), and each band writes its rows when all three
+ *  channels are done.
+ */
+public final class MedianFilter {
+    private static final int MAX_RADIUS = 23169;    // the window area (2r+1)^2 fits in an int,
+                                                    // and column counts fit in a char
+    private static final int CHUNK = 256;       // 5x5 windows sorted at once
+
+    private MedianFilter() { }
+
+   /**
+     * Return the picture filtered with a (2*radius+1)-by-(2*radius+1) median,
+     * as a new picture.
+     */
+    public static Picture filter(Picture picture, int radius) {
+        Picture result = Convolution.blank(picture);
+        filter(picture, result, radius);
+        return result;
+    }
+
+   /**
+     * Write source filtered with a (2*radius+1)-by-(2*radius+1) median to
+     * target, which must have the same size and can't be source.
+     */
+    public static void filter(Picture source, Picture target, int radius) {
+        final int w = source.width();
+        final int h = source.height();
+        if (target.width() != w || target.height() != h) {
+            throw new IllegalArgumentException("target must be " + w + "-by-" + h);
+        }
+        if (target == source) { throw new IllegalArgumentException("can't filter a picture in place"); }
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("radius must be between 0 and " + MAX_RADIUS);
+        }
+        final int channels = source.isGray() ? 1 : 3;
+
+        if (radius == 1 || radius == 2) {
+            Parallel.forRange(h, Math.max(16, Parallel.grain(h)), (lo, hi) ->
+                new Network(source, w, h, radius).run(lo, hi, channels, target));
+            return;
+        }
+
+        // each band starts by counting its first 2r+1 rows, so keep bands
+        // several windows tall
+        int grain = Math.max(Math.max(16, 4 * (2*radius + 1)), Parallel.grain(h));
+        Parallel.forRange(h, grain, (lo, hi) -> {
+            int[] out = new int[(hi - lo) * w];
+            source.getRegion(0, lo, w, hi - lo, out);
+            for (int k = 0; k < out.length; k++) { out[k] &= 0xFF000000; }
+            Band band = new Band(source, w, h, radius);
+            for (int c = 0; c < channels; c++) {
+                band.run(lo, hi, 16 - 8*c, channels == 1, out);
+            }
+            target.setRegion(0, lo, w, hi - lo, out);
+        });
+    }
+
+    // the histograms of one band, reused for each channel
+    private static final class Band {
+        private final Picture source;
+        private final int w, h, r;
+        private final char[] coarse;        // column histograms: coarse[16*x + v/16]
+        private final char[] fine;          //                    fine[256*x + v]
+        private final int[] windowCoarse = new int[16];
+        private final int[] windowFine = new int[256];
+        private final int[] synced = new int[16];   // column at which each group of windowFine is current
+        private final int[] entering, leaving;      // packed source rows
+
+        Band(Picture source, int w, int h, int r) {
+            this.source = source;
+            this.w = w;
+            this.h = h;
+            this.r = r;
+            coarse = new char[16 * w];
+            fine = new char[256 * w];
+            entering = new int[w];
+            leaving = new int[w];
+        }
+
+        // or the medians of the channel at the given shift, for rows lo to
+        // hi-1, into out; if gray, into all three channels
+        void run(int lo, int hi, int shift, boolean gray, int[] out) {
+            Arrays.fill(coarse, (char) 0);
+            Arrays.fill(fine, (char) 0);
+            for (int y = lo - r; y <= lo + r; y++) {
+                source.getRow(clamp(y, h), entering);
+                for (int x = 0; x < w; x++) {
+                    int v = (entering[x] >> shift) & 0xFF;
+                    coarse[16*x + (v >> 4)]++;
+                    fine[256*x + v]++;
+                }
+            }
+
+            int half = (2*r + 1) * (2*r + 1) / 2;
+            for (int y = lo; y < hi; y++) {
+                if (y > lo) { slide(y, shift); }
+                row(half, shift, gray, out, (y - lo) * w);
+            }
+        }
+
+        // move the column histograms down from row y-1 to row y
+        private void slide(int y, int shift) {
+            int in  = clamp(y + r, h);
+            int old = clamp(y - r - 1, h);
+            if (in == old) { return; }
+            source.getRow(in, entering);
+            source.getRow(old, leaving);
+            for (int x = 0; x < w; x++) {
+                int a = (entering[x] >> shift) & 0xFF;
+                int b = (leaving[x]  >> shift) & 0xFF;
+                if (a == b) { continue; }
+                coarse[16*x + (a >> 4)]++;
+                coarse[16*x + (b >> 4)]--;
+                fine[256*x + a]++;
+                fine[256*x + b]--;
+            }
+        }
+
+        // the medians of one row, from the column histograms
+        private void row(int half, int shift, boolean gray, int[] out, int base) {
+            Arrays.fill(windowCoarse, 0);
+            for (int j = -r; j <= r; j++) {
+                int col = 16 * clamp(j, w);
+                for (int b = 0; b < 16; b++) { windowCoarse[b] += coarse[col + b]; }
+            }
+            Arrays.fill(synced, Integer.MIN_VALUE);
+
+            for (int x = 0; x < w; x++) {
+                if (x > 0) {
+                    int in  = 16 * clamp(x + r, w);
+                    int old = 16 * clamp(x - r - 1, w);
+                    if (in != old) {
+                        for (int b = 0; b < 16; b++) { windowCoarse[b] += coarse[in + b] - coarse[old + b]; }
+                    }
+                }
+
+                // the coarse bin holding the median, and its rank in that bin
+                int b = 0;
+                int rank = half;
+                while (rank >= windowCoarse[b]) { rank -= windowCoarse[b]; b++; }
+
+                sync(b, x);
+                int v = 16 * b;
+                while (rank >= windowFine[v]) { rank -= windowFine[v]; v++; }
+
+                out[base + x] |= gray ? v * 0x010101 : v << shift;
+            }
+        }
+
+        // bring the fine bins of coarse bin b up to date for the window at x,
+        // by sliding them from where they were last used or by adding up the
+        // 2r+1 columns, whichever is cheaper
+        private void sync(int b, int x) {
+            int from = synced[b];
+            int lo = 16 * b;
+            if (from == x) { return; }
+            if ((long) x - from > 2*r + 1) {
+                Arrays.fill(windowFine, lo, lo + 16, 0);
+                for (int j = x - r; j <= x + r; j++) {
+                    int col = 256 * clamp(j, w) + lo;
+                    for (int k = 0; k < 16; k++) { windowFine[lo + k] += fine[col + k]; }
+                }
+            }
+            else {
+                for (int p = from + 1; p <= x; p++) {
+                    int in  = 256 * clamp(p + r, w) + lo;
+                    int old = 256 * clamp(p - r - 1, w) + lo;
+                    if (in == old) { continue; }
+                    for (int k = 0; k < 16; k++) { windowFine[lo + k] += fine[in + k] - fine[old + k]; }
+                }
+            }
+            synced[b] = x;
+        }
+    }
+
+    // the 3x3 and 5x5 medians, from min/max sorting networks: each column of
+    // the window is sorted once per row and shared by the 2r+1 windows over it
+    private static final class Network {
+        private final Picture source;
+        private final int w, h, r, n;
+        private final int[][] ring;         // the 2r+1 source rows of the window, by row mod 2r+1
+        private final int[][] sorted;       // sorted[k][x + r]: the value of rank k in column x of the window
+        private final int[] out;            // the packed output row
+        private final int[][][] grid;       // grid[k][j][i]: entry j of rank row k of window x0+i
+        private final int[][] candidates = new int[13][];
+
+        Network(Picture source, int w, int h, int r) {
+            this.source = source;
+            this.w = w;
+            this.h = h;
+            this.r = r;
+            n = 2*r + 1;
+            ring = new int[n][w];
+            sorted = new int[n][w + 2*r];
+            out = new int[w];
+            grid = (r == 2) ? new int[5][5][CHUNK] : null;
+        }
+
+        void run(int lo, int hi, int channels, Picture target) {
+            for (int y = lo - r; y < lo + r; y++) { load(y); }
+            for (int y = lo; y < hi; y++) {
+                load(y + r);
+                int[] center = ring[Math.floorMod(y, n)];
+                for (int x = 0; x < w; x++) { out[x] = center[x] & 0xFF000000; }
+                for (int c = 0, shift = 16; c < channels; c++, shift -= 8) {
+                    int scale = (channels == 1) ? 0x010101 : 1 << shift;
+                    if (r == 1) { median3(y, shift, scale); }
+                    else        { median5(y, shift, scale); }
+                }
+                target.setRow(y, out);
+            }
+        }
+
+        private void load(int y) {
+            source.getRow(clamp(y, h), ring[Math.floorMod(y, n)]);
+        }
+
+        // the 3x3 median is the median of the largest of the three column
+        // minimums, the median of the column medians and the smallest of the
+        // column maximums
+        private void median3(int y, int shift, int scale) {
+            for (int k = 0; k < 3; k++) {
+                int[] row = ring[Math.floorMod(y - 1 + k, n)];
+                int[] s = sorted[k];
+                s[0] = (row[0] >> shift) & 0xFF;
+                for (int x = 0; x < w; x++) { s[x + 1] = (row[x] >> shift) & 0xFF; }
+                s[w + 1] = s[w];
+            }
+            int[] s0 = sorted[0], s1 = sorted[1], s2 = sorted[2];
+            exchange(s0, s1, w + 2);
+            exchange(s1, s2, w + 2);
+            exchange(s0, s1, w + 2);
+            for (int x = 0; x < w; x++) {
+                int lo  = max(max(s0[x], s0[x + 1]), s0[x + 2]);
+                int mid = median(s1[x], s1[x + 1], s1[x + 2]);
+                int hi  = min(min(s2[x], s2[x + 1]), s2[x + 2]);
+                out[x] |= median(lo, mid, hi) * scale;
+            }
+        }
+
+        // the 5x5 median: with the columns sorted and then the rows of equal
+        // rank sorted, the 6 entries nearest the low corner are below the
+        // median and the 6 nearest the high corner above it, so it is the
+        // median of the 13 entries left. Every comparator runs over a chunk
+        // of CHUNK windows at once, one array per entry of the window, so
+        // that the loops compile to vector min and max instructions.
+        private void median5(int y, int shift, int scale) {
+            int m = w + 4;
+            for (int k = 0; k < 5; k++) {
+                int[] row = ring[Math.floorMod(y - 2 + k, n)];
+                int[] s = sorted[k];
+                s[0] = s[1] = (row[0] >> shift) & 0xFF;
+                for (int x = 0; x < w; x++) { s[x + 2] = (row[x] >> shift) & 0xFF; }
+                s[w + 2] = s[w + 3] = s[w + 1];
+            }
+            for (int[] pair : SORT5) { exchange(sorted[pair[0]], sorted[pair[1]], m); }
+
+            int[][] candidates = this.candidates;
+            for (int x0 = 0; x0 < w; x0 += CHUNK) {
+                int len = Math.min(CHUNK, w - x0);
+                for (int k = 0, c = 0; k < 5; k++) {
+                    int[][] rank = grid[k];
+                    for (int j = 0; j < 5; j++) { System.arraycopy(sorted[k], x0 + j, rank[j], 0, len); }
+                    for (int[] pair : SORT5) { exchange(rank[pair[0]], rank[pair[1]], len); }
+                    for (int j = KEEP[k][0]; j <= KEEP[k][1]; j++) { candidates[c++] = rank[j]; }
+                }
+
+                // forgetful selection: the smallest and largest of any 8 of
+                // the 13 can't be the median, so drop both and take in the next
+                for (int lo = 0, next = 8; next < 13; lo++, next++) {
+                    for (int i = lo + 1; i <= 7; i++) { exchange(candidates[lo], candidates[i], len); }
+                    for (int i = lo + 1; i < 7; i++)  { exchange(candidates[i], candidates[7], len); }
+                    candidates[7] = candidates[next];
+                }
+                int[] a = candidates[5], b = candidates[6], c = candidates[7];
+                for (int i = 0; i < len; i++) { out[x0 + i] |= median(a[i], b[i], c[i]) * scale; }
+            }
+        }
+    }
+
+    // a 9-comparator network that sorts 5 values
+    private static final int[][] SORT5 = { { 0, 1 }, { 3, 4 }, { 2, 4 }, { 2, 3 }, { 1, 4 },
+                                           { 0, 3 }, { 0, 2 }, { 1, 3 }, { 1, 2 } };
+
+    // the entries of each sorted rank row of the 5x5 window that may be the
+    // median: those j with (k+1)(j+1) <= 13 and (5-k)(5-j) <= 13
+    private static final int[][] KEEP = { { 3, 4 }, { 2, 4 }, { 1, 3 }, { 0, 2 }, { 0, 1 } };
+
+    // put the smaller of a[i] and b[i] in a[i] and the larger in b[i], for i
+    // from 0 to n-1; d & (d >> 31) is p - q if p < q and 0 otherwise, which
+    // unlike Math.min and Math.max compiles to vector instructions
+    private static void exchange(int[] a, int[] b, int n) {
+        for (int i = 0; i < n; i++) {
+            int p = a[i];
+            int q = b[i];
+            int d = p - q;
+            d &= d >> 31;
+            a[i] = q + d;
+            b[i] = p - d;
+        }
+    }
+
+    private static int median(int a, int b, int c) {
+        return max(min(a, b), min(max(a, b), c));
+    }
+
+    // branch-free min and max of 8-bit values, as in exchange()
+    private static int min(int a, int b) {
+        int d = a - b;
+        return b + (d & (d >> 31));
+    }
+
+    private static int max(int a, int b) {
+        int d = a - b;
+        return a - (d & (d >> 31));
+    }
+
+    private static int clamp(int i, int n) {
+        return Math.min(n - 1, Math.max(0, i));
+    }
+
+
+   /**
+     * Test client. Filters the picture named by the first command-line
+     * argument with a median of the given radius, reports the time and
+     * shows the result.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        int radius = Integer.parseInt(args[1]);
+        long start = System.nanoTime();
+        Picture filtered = filter(picture, radius);
+        System.out.printf("radius %d: %.1f ms\n", radius, (System.nanoTime() - start) / 1e6);
+        filtered.show();
+    }
+
+}
@@ -0,0 +1,53 @@
+/*************************************************************************
+ *  Compilation:  javac PackedDataBuffer.java
+ *
+ *  A DataBuffer of packed 0xAARRGGBB pixels that are not held in a plain
+ *  int[], such as a memory-mapped file or a cache of tiles. Picture reads
+ *  and writes rows of such a buffer in bulk instead of going through the
+ *  ColorModel one pixel at a time.
+ *
+ *************************************************************************/
+
+import java.awt.image.DataBuffer;
+
+
+/**
+ *  This class is the base of the DataBuffers that hold a width-by-height
+ *  raster of packed int pixels outside the Java heap or in pieces.
+ *  Element y*width() + x holds pixel (x, y); the alpha byte is ignored
+ *  unless hasAlpha() is true.
+ */
+public abstract class PackedDataBuffer extends DataBuffer {
+
+   /**
+     * Create a buffer of the given number of int elements.
+     */
+    protected PackedDataBuffer(int size) {
+        super(DataBuffer.TYPE_INT, size);
+    }
+
+   /**
+     * Return the width of the raster.
+     */
+    public abstract int width();
+
+   /**
+     * Return the height of the raster.
+     */
+    public abstract int height();
+
+   /**
+     * Do the pixels have an alpha channel?
+     */
+    public abstract boolean hasAlpha();
+
+   /**
+     * Copy len elements starting at element i into dst[off..off+len).
+     */
+    public abstract void getElems(int i, int[] dst, int off, int len);
+
+   /**
+     * Copy len elements from src[off..off+len) starting at element i.
+     */
+    public abstract void setElems(int i, int[] src, int off, int len);
+}
@@ -0,0 +1,80 @@
+/*************************************************************************
+ *  Compilation:  javac Parallel.java
+ *
+ *  Splits a range of indices, such as the rows of a picture, into bands
+ *  and runs them on the common fork/join pool.
+ *
+ *************************************************************************/
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ *  This class provides the band-parallel loop used by the filters:
+ *  forRange(n, grain, body) calls body.run(lo, hi) on disjoint ranges that
+ *  cover [0, n), each at most grain long, in parallel.
+ */
+final class Parallel {
+
+   /**
+     * The body of a parallel loop over the indices [lo, hi).
+     */
+    interface Range {
+        void run(int lo, int hi);
+    }
+
+    private Parallel() { }
+
+   /**
+     * Run body over [0, n) in ranges of at most grain indices, in parallel.
+     * Exceptions thrown by body are rethrown to the caller.
+     */
+    static void forRange(int n, int grain, Range body) {
+        if (grain < 1) { grain = 1; }
+        if (n <= grain || ForkJoinPool.getCommonPoolParallelism() <= 1) {
+            for (int lo = 0; lo < n; lo += grain) { body.run(lo, Math.min(n, lo + grain)); }
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new Task(0, n, grain, body));
+    }
+
+   /**
+     * Run body over [0, n) in about four ranges per processor, in parallel.
+     */
+    static void forRange(int n, Range body) {
+        forRange(n, grain(n), body);
+    }
+
+   /**
+     * Return a range length that splits n indices into about four ranges per
+     * processor, so that uneven ranges still balance.
+     */
+    static int grain(int n) {
+        int parts = 4 * ForkJoinPool.getCommonPoolParallelism();
+        return Math.max(1, (n + parts - 1) / parts);
+    }
+
+    // split [lo, hi) in halves until a range is at most grain long
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo, hi, grain;
+        private final Range body;
+
+        Task(int lo, int hi, int grain, Range body) {
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= grain) { body.run(lo, hi); return; }
+            int chunks = (hi - lo + grain - 1) / grain;
+            int mid = lo + (chunks / 2) * grain;
+            invokeAll(new Task(lo, mid, grain, body), new Task(mid, hi, grain, body));
+        }
+    }
+}
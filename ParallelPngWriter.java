@@ -0,0 +1,333 @@
+/*************************************************************************
+ *  Compilation:  javac ParallelPngWriter.java
+ *  Execution:    java ParallelPngWriter imagename output.png [level]
+ *
+ *  PNG writer that filters and deflates bands of rows on all cores, in the
+ *  style of pigz. Each band is compressed as a raw deflate stream primed
+ *  with the last 32 KB of the band before it and ended with a sync flush,
+ *  so the bands concatenate into one valid zlib stream. The Adler-32
+ *  checksums of the bands are combined at the end.
+ *
+ *  % java ParallelPngWriter lich.png lich-copy.png 6
+ *
+ *************************************************************************/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ *  This class provides a multi-threaded PNG encoder for pictures. It writes
+ *  8-bit truecolor (with alpha if the picture has alpha) or, for grayscale
+ *  pictures, 8-bit grayscale images, one IDAT chunk per band of rows.
+ *  The output is standard PNG that any decoder reads.
+ */
+public final class ParallelPngWriter {
+    public static final int NONE     = 0;   // filter type 0: raw bytes
+    public static final int SUB      = 1;   // filter type 1: difference from the left
+    public static final int UP       = 2;   // filter type 2: difference from above
+    public static final int AVERAGE  = 3;   // filter type 3: difference from mean of left and above
+    public static final int PAETH    = 4;   // filter type 4: difference from Paeth predictor
+    public static final int ADAPTIVE = 5;   // per row, the filter with the smallest sum of residuals
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int WINDOW = 32768;        // deflate window, primed from the previous band
+    private static final int MIN_BAND = 256 * 1024; // minimum bytes of filtered data per band
+
+    private ParallelPngWriter() { }
+
+   /**
+     * Save the picture as a PNG file with the given deflate level (0 to 9,
+     * or -1 for the default) and filter strategy.
+     */
+    public static void write(Picture picture, File file, int level, int filter) throws IOException {
+        if (level < -1 || level > 9)              { throw new IllegalArgumentException("bad deflate level: " + level); }
+        if (filter < NONE || filter > ADAPTIVE)   { throw new IllegalArgumentException("bad filter: " + filter); }
+        final Picture source = picture.isBinary() ? picture.toGray() : picture;
+        final int w = picture.width();
+        final int h = picture.height();
+        final int channels = source.isGray() ? 1 : source.hasAlpha() ? 4 : 3;
+        final int colorType = (channels == 1) ? 0 : (channels == 4) ? 6 : 2;
+        final int rowBytes = w * channels;
+
+        // bands of whole rows, large enough to compress well, about four per core
+        int rows = Math.max(Parallel.grain(h), (MIN_BAND + rowBytes) / (rowBytes + 1));
+        final int bandRows = Math.min(h, rows);
+        final int bands = (h + bandRows - 1) / bandRows;
+        final byte[][] compressed = new byte[bands][];
+        final long[] adlers = new long[bands];
+        final long[] lengths = new long[bands];
+
+        Parallel.forRange(bands, 1, (lo, hi) -> {
+            for (int b = lo; b < hi; b++) {
+                int y0 = b * bandRows;
+                int y1 = Math.min(h, y0 + bandRows);
+                Band band = new Band(source, channels, filter);
+
+                // prime the dictionary with the filtered rows just above the band
+                if (y0 > 0) {
+                    int before = Math.min(y0, (WINDOW + rowBytes) / (rowBytes + 1));
+                    byte[] tail = band.filter(y0 - before, y0);
+                    int n = Math.min(WINDOW, tail.length);
+                    band.deflater(level).setDictionary(tail, tail.length - n, n);
+                }
+                else { band.deflater(level); }
+
+                byte[] data = band.filter(y0, y1);
+                Adler32 adler = new Adler32();
+                adler.update(data, 0, data.length);
+                adlers[b] = adler.getValue();
+                lengths[b] = data.length;
+                compressed[b] = band.deflate(data, y1 == h);
+            }
+        });
+
+        long adler = adlers[0];
+        for (int b = 1; b < bands; b++) {
+            adler = combine(adler, adlers[b], lengths[b]);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                                        new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+            DataOutputStream ihdr = new DataOutputStream(header);
+            ihdr.writeInt(w);
+            ihdr.writeInt(h);
+            ihdr.writeByte(8);              // bit depth
+            ihdr.writeByte(colorType);
+            ihdr.writeByte(0);              // deflate
+            ihdr.writeByte(0);              // adaptive filtering
+            ihdr.writeByte(0);              // no interlace
+            chunk(out, "IHDR", header.toByteArray(), null, null);
+            for (int b = 0; b < bands; b++) {
+                byte[] prefix = (b == 0) ? zlibHeader(level) : null;
+                byte[] suffix = null;
+                if (b == bands - 1) {
+                    suffix = new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16),
+                                          (byte) (adler >>> 8),  (byte) adler };
+                }
+                chunk(out, "IDAT", compressed[b], prefix, suffix);
+                compressed[b] = null;
+            }
+            chunk(out, "IEND", new byte[0], null, null);
+        }
+    }
+
+    // write a chunk whose data is prefix + data + suffix (either may be null)
+    private static void chunk(DataOutputStream out, String type, byte[] data,
+                              byte[] prefix, byte[] suffix) throws IOException {
+        int length = data.length + (prefix == null ? 0 : prefix.length) + (suffix == null ? 0 : suffix.length);
+        byte[] name = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        out.writeInt(length);
+        out.write(name);
+        if (prefix != null) { out.write(prefix); crc.update(prefix); }
+        out.write(data);
+        crc.update(data);
+        if (suffix != null) { out.write(suffix); crc.update(suffix); }
+        out.writeInt((int) crc.getValue());
+    }
+
+    // the two-byte zlib header for a deflate stream with a 32 KB window
+    private static byte[] zlibHeader(int level) {
+        int flevel;
+        if      (level == 0 || level == 1) { flevel = 0; }
+        else if (level >= 2 && level <= 5) { flevel = 1; }
+        else if (level == 6 || level < 0)  { flevel = 2; }
+        else                               { flevel = 3; }
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += (31 - (cmf * 256 + flg) % 31) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    // the Adler-32 of the concatenation of two blocks, the second len2 bytes long
+    // (adler32_combine() from zlib)
+    private static long combine(long adler1, long adler2, long len2) {
+        final long BASE = 65521;
+        long rem = len2 % BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % BASE;
+        sum1 += (adler2 & 0xFFFF) + BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + BASE - rem;
+        if (sum1 >= BASE)     { sum1 -= BASE; }
+        if (sum1 >= BASE)     { sum1 -= BASE; }
+        if (sum2 >= 2 * BASE) { sum2 -= 2 * BASE; }
+        if (sum2 >= BASE)     { sum2 -= BASE; }
+        return sum1 | (sum2 << 16);
+    }
+
+    // the per-thread state for filtering and compressing one band
+    private static final class Band {
+        private final Picture picture;
+        private final int channels;
+        private final int filter;
+        private final int[] pixels;         // one row of the picture
+        private byte[] previous, current;   // raw bytes of the rows above and at the cursor
+        private final byte[][] candidates;  // filtered row for each filter type
+        private Deflater deflater;
+
+        Band(Picture picture, int channels, int filter) {
+            this.picture  = picture;
+            this.channels = channels;
+            this.filter   = filter;
+            int rowBytes  = picture.width() * channels;
+            pixels     = new int[picture.width()];
+            previous   = new byte[rowBytes];
+            current    = new byte[rowBytes];
+            candidates = new byte[5][rowBytes];
+        }
+
+        Deflater deflater(int level) {
+            deflater = new Deflater(level, true);
+            return deflater;
+        }
+
+        // the filtered bytes of rows [y0, y1): a filter type byte, then the row
+        byte[] filter(int y0, int y1) {
+            int rowBytes = current.length;
+            byte[] out = new byte[(y1 - y0) * (rowBytes + 1)];
+            if (y0 > 0) { raw(y0 - 1, previous); }
+            else        { Arrays.fill(previous, (byte) 0); }
+            for (int y = y0, k = 0; y < y1; y++, k += rowBytes + 1) {
+                raw(y, current);
+                int type = filter;
+                if (filter == ADAPTIVE) {
+                    long best = Long.MAX_VALUE;
+                    for (int t = NONE; t <= PAETH; t++) {
+                        long sum = apply(t, candidates[t]);
+                        if (sum < best) { best = sum; type = t; }
+                    }
+                }
+                else { apply(type, candidates[type]); }
+                out[k] = (byte) type;
+                System.arraycopy(candidates[type], 0, out, k + 1, rowBytes);
+                byte[] swap = previous; previous = current; current = swap;
+            }
+            return out;
+        }
+
+        // the raw bytes of row y
+        private void raw(int y, byte[] row) {
+            picture.getRow(y, pixels);
+            if (channels == 1) {
+                for (int i = 0; i < pixels.length; i++) { row[i] = (byte) pixels[i]; }
+            }
+            else if (channels == 3) {
+                for (int i = 0, k = 0; i < pixels.length; i++, k += 3) {
+                    int rgb = pixels[i];
+                    row[k]     = (byte) (rgb >> 16);
+                    row[k + 1] = (byte) (rgb >> 8);
+                    row[k + 2] = (byte) rgb;
+                }
+            }
+            else {
+                for (int i = 0, k = 0; i < pixels.length; i++, k += 4) {
+                    int argb = pixels[i];
+                    row[k]     = (byte) (argb >> 16);
+                    row[k + 1] = (byte) (argb >> 8);
+                    row[k + 2] = (byte) argb;
+                    row[k + 3] = (byte) (argb >>> 24);
+                }
+            }
+        }
+
+        // filter the current row with the given type into out; return the
+        // sum of the residuals as signed bytes, the usual adaptive heuristic
+        private long apply(int type, byte[] out) {
+            byte[] cur = current, up = previous;
+            int bpp = channels;
+            long sum = 0;
+            for (int k = 0; k < cur.length; k++) {
+                int x = cur[k] & 0xFF;
+                int a = (k >= bpp) ? cur[k - bpp] & 0xFF : 0;
+                int b = up[k] & 0xFF;
+                int r;
+                switch (type) {
+                    case SUB:     r = x - a;              break;
+                    case UP:      r = x - b;              break;
+                    case AVERAGE: r = x - ((a + b) >> 1); break;
+                    case PAETH: {
+                        int c = (k >= bpp) ? up[k - bpp] & 0xFF : 0;
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                        int pred = (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+                        r = x - pred;
+                        break;
+                    }
+                    default:      r = x;
+                }
+                out[k] = (byte) r;
+                sum += Math.abs((byte) r);
+            }
+            return sum;
+        }
+
+        // compress data as the next part of the raw deflate stream: end with
+        // a sync flush, or finish the stream if this is the last band
+        byte[] deflate(byte[] data, boolean last) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[1 << 16];
+            deflater.setInput(data);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+            }
+            else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            deflater.end();
+            return out.toByteArray();
+        }
+    }
+
+
+   /**
+     * Test client. Saves the picture named by the first command-line argument
+     * as the PNG file named by the second, with the deflate level given by
+     * the optional third, and compares against the ImageIO writer.
+     */
+    public static void main(String[] args) throws IOException {
+        Picture picture = new Picture(args[0]);
+        int level = (args.length > 2) ? Integer.parseInt(args[2]) : 6;
+        File file = new File(args[1]);
+
+        long start = System.nanoTime();
+        write(picture, file, level, ADAPTIVE);
+        long parallel = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        picture.save(new File(file.getPath() + ".imageio.png"), new PictureEncoder().pngCompression(level));
+        long serial = System.nanoTime() - start;
+
+        Picture copy = new Picture(file);
+        for (int j = 0; j < picture.height(); j++) {
+            for (int i = 0; i < picture.width(); i++) {
+                if (copy.getRGB(i, j) != picture.getRGB(i, j)) {
+                    throw new RuntimeException("pixel (" + i + ", " + j + ") differs");
+                }
+            }
+        }
+        System.out.printf("parallel: %.1f ms, %d bytes\n", parallel / 1e6, file.length());
+        System.out.printf("ImageIO:  %.1f ms, %d bytes\n", serial / 1e6,
+                          new File(file.getPath() + ".imageio.png").length());
+    }
+
+}
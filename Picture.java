@@ -18,6 +18,10 @@
  *************************************************************************/
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -26,15 +30,39 @@ import javax.swing.JMenuItem;
 import javax.swing.ImageIcon;
 import javax.swing.KeyStroke;
 import java.awt.FileDialog;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.Color;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
 
 
 /**
@@ -51,10 +79,27 @@ import java.net.URL;
  *  <i>Introduction to Programming in Java: An Interdisciplinary Approach</i>
  *  by Robert Sedgewick and Kevin Wayne.
  */
-public final class Picture implements ActionListener {
+public final class Picture implements ActionListener, AutoCloseable {
+    private static final PictureEncoder ENCODER = new PictureEncoder();   // used by save(File)
+    private static final IndexColorModel GRAY_LEVELS = grayLevels();      // used by getBufferedImage()
+    private static SaveQueue saves;         // used by saveAsync(), created on first use
+    private static DecodeCache decodes;     // used by cached(), created on first use
+
     private BufferedImage image;    // the rasterized image
     private JFrame frame;           // on-screen view
     private String filename;        // name of file
+    private int[] pixels;           // backing array of a packed int raster, or null
+    private PackedDataBuffer store; // backing store of a mapped or tiled raster, or null
+    private byte[][] planes;        // red, green, blue (and alpha) planes of a planar raster,
+                                    // the single plane of a grayscale raster, or null
+    private byte[] bits;            // backing array of a binary raster, 8 pixels per byte, or null
+    private int offset;             // index of pixel (0, 0) in pixels or in each plane,
+                                    // or of the byte holding it in bits
+    private int stride;             // distance between rows in pixels, plane elements or bytes
+    private int bitOffset;          // position of pixel (0, 0) within its row of bits
+    private int opaque;             // alpha bits implied by the raster (0 if it has alpha)
+    private Backing backing;        // the raster this picture, its parent and views are cut from
+    private int rootX, rootY;       // position of this picture in the raster (nonzero for views)
 
    /**
      * Create an empty w-by-h picture.
@@ -63,18 +108,176 @@ public final class Picture implements ActionListener {
         image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
         // set to TYPE_INT_ARGB to support transparency
         filename = w + "-by-" + h;
+        bind();
+    }
+
+   /**
+     * Create a picture backed by the given BufferedImage. The image is not
+     * copied, so changes to either one are visible in the other.
+     */
+    public Picture(BufferedImage image) {
+        if (image == null) { throw new RuntimeException("can't create Picture from null image"); }
+        this.image = image;
+        filename = image.getWidth() + "-by-" + image.getHeight();
+        bind();
+    }
+
+   /**
+     * Create an empty w-by-h picture in planar storage mode: each channel is
+     * kept in its own contiguous byte[] plane instead of packed into ints.
+     */
+    public static Picture planar(int w, int h) {
+        return planar(w, h, false);
+    }
+
+   /**
+     * Create an empty w-by-h picture in planar storage mode, with a fourth
+     * plane for the alpha channel if alpha is true.
+     */
+    public static Picture planar(int w, int h, boolean alpha) {
+        int bands = alpha ? 4 : 3;
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, w, h, bands, null);
+        ComponentColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                                                            alpha, false,
+                                                            alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                                                            DataBuffer.TYPE_BYTE);
+        return new Picture(new BufferedImage(model, raster, false, null));
+    }
+
+   /**
+     * Create an empty w-by-h grayscale picture, stored as one byte per pixel
+     * (TYPE_BYTE_GRAY). Colors are set to the average of their red, green and
+     * blue components, and read back as that gray. Gray levels are used as
+     * stored, in grayscale pictures read from files too, without the linear
+     * to sRGB conversion that BufferedImage.getRGB() applies to this type.
+     */
+    public static Picture gray(int w, int h) {
+        return new Picture(new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY));
+    }
+
+   /**
+     * Create an empty w-by-h black-and-white picture, stored as one bit per
+     * pixel (TYPE_BYTE_BINARY). Colors whose gray level is at least 128 are
+     * set to white, all others to black.
+     */
+    public static Picture binary(int w, int h) {
+        return new Picture(new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY));
+    }
+
+   /**
+     * Create a w-by-h picture whose pixels live in the given file, which is
+     * memory-mapped instead of read onto the heap. Any existing file is
+     * replaced. Changes to the picture are written through to the file.
+     */
+    public static Picture map(File file, int w, int h) {
+        try { return wrap(MappedDataBuffer.create(file, w, h, false), file.getName()); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not map file: " + file);
+        }
+    }
+
+   /**
+     * Create a picture by memory-mapping a file created by map(File, int, int).
+     */
+    public static Picture map(File file) {
+        return map(file, FileChannel.MapMode.READ_WRITE);
+    }
+
+   /**
+     * Create a picture by memory-mapping a file created by map(File, int, int)
+     * with the given mode. With MapMode.READ_ONLY the picture can't be
+     * changed; with MapMode.PRIVATE changes are never written to the file.
+     */
+    public static Picture map(File file, FileChannel.MapMode mode) {
+        try { return wrap(MappedDataBuffer.open(file, mode), file.getName()); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not map file: " + file);
+        }
+    }
+
+   /**
+     * Create a picture from the given image file through the on-disk
+     * DecodeCache: the file is decoded on first use, and later calls
+     * memory-map the decoded pixels until the file changes. Changes to the
+     * picture are never written back to the cache.
+     */
+    public static Picture cached(String filename) {
+        File file = new File(filename);
+        Picture picture = decodeCache().load(file);
+        picture.filename = file.getName();
+        return picture;
+    }
+
+    // the cache used by cached(), in the default directory
+    private static synchronized DecodeCache decodeCache() {
+        if (decodes == null) { decodes = new DecodeCache(); }
+        return decodes;
     }
 
    /**
-     * Create a picture by reading in a .png, .gif, or .jpg from
-     * the given filename or URL name.
+     * Create a picture that decodes the given image file lazily, one
+     * tileSize-by-tileSize tile at a time on first access, and keeps at most
+     * budget bytes of tiles in memory, evicting the least recently used.
+     */
+    public static Picture tiled(String filename, int tileSize, long budget) {
+        File file = new File(filename);
+        try { return wrap(TiledDataBuffer.open(file, tileSize, budget), file.getName()); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + filename);
+        }
+    }
+
+   /**
+     * Create an empty w-by-h picture made of tileSize-by-tileSize tiles that
+     * keeps at most budget bytes of tiles in memory, spilling the least
+     * recently used to a temporary file.
+     */
+    public static Picture tiled(int w, int h, int tileSize, long budget) {
+        return wrap(TiledDataBuffer.create(w, h, tileSize, budget), w + "-by-" + h);
+    }
+
+   /**
+     * Create a w-by-h picture from a raw headerless file with the given
+     * number of bytes per pixel: 1 for gray, 3 for RGB or 4 for RGBA.
+     */
+    public static Picture raw(File file, int w, int h, int bands) {
+        try {
+            Picture picture = new Picture(Pnm.readRaw(file, w, h, bands));
+            picture.filename = file.getName();
+            return picture;
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + file + " (" + e.getMessage() + ")");
+        }
+    }
+
+    // wrap a mapped or tiled buffer in a packed int BufferedImage
+    private static Picture wrap(PackedDataBuffer buffer, String name) {
+        int w = buffer.width();
+        int h = buffer.height();
+        ColorModel model;
+        if (buffer.hasAlpha()) { model = ColorModel.getRGBdefault(); }
+        else                   { model = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF); }
+        WritableRaster raster = Raster.createWritableRaster(model.createCompatibleSampleModel(w, h),
+                                                            buffer, null);
+        Picture picture = new Picture(new BufferedImage(model, raster, false, null));
+        picture.filename = name;
+        return picture;
+    }
+
+   /**
+     * Create a picture by reading in a .png, .gif, .jpg, .pbm, .pgm, or .ppm
+     * from the given filename or URL name.
      */
     public Picture(String filename) {
         this.filename = filename;
         try {
             // try to read from file in working directory
             File file = new File(filename);
-            if (file.isFile()) {
+            if (file.isFile() && Pnm.handles(filename)) {
+                image = Pnm.read(file);
+            }
+            else if (file.isFile()) {
                 image = ImageIO.read(file);
             }
 
@@ -94,13 +297,19 @@ public final class Picture implements ActionListener {
         if (image == null) {
             throw new RuntimeException("Invalid image file: " + filename);
         }
+        image = packed(image);
+        bind();
     }
 
    /**
-     * Create a picture by reading in a .png, .gif, or .jpg from a File.
+     * Create a picture by reading in a .png, .gif, .jpg, .pbm, .pgm, or .ppm
+     * from a File.
      */
     public Picture(File file) {
-        try { image = ImageIO.read(file); }
+        try {
+            if (Pnm.handles(file.getName())) { image = Pnm.read(file);     }
+            else                             { image = ImageIO.read(file); }
+        }
         catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException("Could not open file: " + file);
@@ -108,6 +317,221 @@ public final class Picture implements ActionListener {
         if (image == null) {
             throw new RuntimeException("Invalid image file: " + file);
         }
+        image = packed(image);
+        bind();
+    }
+
+   /**
+     * Create a picture by reading in a .png, .gif, or .jpg from the given
+     * input stream, which is not closed. The name is used as the window
+     * title.
+     */
+    public Picture(InputStream input, String name) {
+        this.filename = name;
+        try { image = ImageIO.read(new MemoryCacheImageInputStream(input)); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read image: " + name);
+        }
+        if (image == null) {
+            throw new RuntimeException("Invalid image file: " + name);
+        }
+        image = packed(image);
+        bind();
+    }
+
+   /**
+     * Create a picture by decoding only the given region of a .png, .gif, or
+     * .jpg from the given filename or URL name, keeping every subsampling-th
+     * pixel in each direction. A null region means the whole image. The
+     * decoder skips the rest, so a small region or a large subsampling
+     * factor decodes faster and allocates only the output size.
+     */
+    public Picture(String filename, Rectangle region, int subsampling) {
+        this.filename = filename;
+        try {
+            File file = new File(filename);
+            if (file.isFile()) {
+                image = read(file, region, subsampling);
+            }
+            else {
+                URL url = getClass().getResource(filename);
+                if (url == null) { url = new URL(filename); }
+                try (InputStream in = url.openStream()) {
+                    image = read(in, region, subsampling);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + filename);
+        }
+        if (image == null) {
+            throw new RuntimeException("Invalid image file: " + filename);
+        }
+        image = packed(image);
+        bind();
+    }
+
+   /**
+     * Create a picture by decoding only the given region of a .png, .gif, or
+     * .jpg from a File, keeping every subsampling-th pixel in each direction.
+     * A null region means the whole image.
+     */
+    public Picture(File file, Rectangle region, int subsampling) {
+        this.filename = file.getName();
+        try { image = read(file, region, subsampling); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + file);
+        }
+        if (image == null) {
+            throw new RuntimeException("Invalid image file: " + file);
+        }
+        image = packed(image);
+        bind();
+    }
+
+    // decode the region of the first image in source through an ImageReader,
+    // keeping every subsampling-th pixel; null if no reader handles source
+    private static BufferedImage read(Object source, Rectangle region, int subsampling)
+            throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1");
+        }
+        ImageInputStream input = ImageIO.createImageInputStream(source);
+        if (input == null) { return null; }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) { return null; }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (region != null) { param.setSourceRegion(region); }
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            }
+            finally { reader.dispose(); }
+        }
+        finally { input.close(); }
+    }
+
+    // convert a decoded image to TYPE_INT_RGB (or TYPE_INT_ARGB if it has
+    // alpha) so that every picture read from a file has a packed int raster;
+    // grayscale and black-and-white images keep their compact rasters
+    private static BufferedImage packed(BufferedImage src) {
+        int type = src.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            return src;
+        }
+        if (type == BufferedImage.TYPE_BYTE_GRAY) {
+            return src;
+        }
+        if (type == BufferedImage.TYPE_BYTE_BINARY && src.getColorModel().getPixelSize() == 1
+                && src.getColorModel().getRGB(0) == 0xFF000000
+                && src.getColorModel().getRGB(1) == 0xFFFFFFFF) {
+            return src;
+        }
+        int w = src.getWidth();
+        int h = src.getHeight();
+        if (src.getColorModel().hasAlpha()) { type = BufferedImage.TYPE_INT_ARGB; }
+        else                                { type = BufferedImage.TYPE_INT_RGB;  }
+        BufferedImage dst = new BufferedImage(w, h, type);
+        int[] row = new int[w];
+        for (int j = 0; j < h; j++) {
+            src.getRGB(0, j, w, 1, row, 0, w);
+            dst.setRGB(0, j, w, 1, row, 0, w);
+        }
+        return dst;
+    }
+
+    // cache the layout of a packed int raster so that pixel access can go
+    // straight to the backing array instead of through the ColorModel
+    private void bind() {
+        if (backing == null) { backing = new Backing(image, this); }
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        int dx = -raster.getSampleModelTranslateX();    // position of this raster
+        int dy = -raster.getSampleModelTranslateY();    // within its sample model
+        pixels = null;
+        planes = null;
+        bits   = null;
+        store  = null;
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getDataBuffer() instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel model =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            pixels = buffer.getData();
+            stride = model.getScanlineStride();
+            offset = buffer.getOffset() + model.getOffset(dx, dy);
+            opaque = (type == BufferedImage.TYPE_INT_RGB) ? 0xFF000000 : 0;
+        }
+        else if (raster.getDataBuffer() instanceof PackedDataBuffer) {
+            SinglePixelPackedSampleModel model =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+            store  = (PackedDataBuffer) raster.getDataBuffer();
+            stride = model.getScanlineStride();
+            offset = model.getOffset(dx, dy);
+            opaque = store.hasAlpha() ? 0 : 0xFF000000;
+        }
+        else if (isPlanarLayout(raster)) {
+            BandedSampleModel model = (BandedSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            int bands = model.getNumBands();
+            planes = new byte[bands][];
+            for (int b = 0; b < bands; b++) {
+                planes[b] = buffer.getData(model.getBankIndices()[b]);
+            }
+            stride = model.getScanlineStride();
+            offset = buffer.getOffset() + model.getOffset(dx, dy);
+            opaque = (bands == 3) ? 0xFF000000 : 0;
+        }
+        else if (type == BufferedImage.TYPE_BYTE_GRAY
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getDataBuffer() instanceof DataBufferByte) {
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            planes = new byte[][] { buffer.getData() };
+            stride = model.getScanlineStride();
+            offset = buffer.getOffset() + model.getOffset(dx, dy);
+            opaque = 0xFF000000;
+        }
+        else if (isBinaryLayout(raster)) {
+            MultiPixelPackedSampleModel model = (MultiPixelPackedSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            bits      = buffer.getData();
+            stride    = model.getScanlineStride();
+            offset    = buffer.getOffset() + dy * stride;
+            bitOffset = model.getDataBitOffset() + dx;
+            opaque    = 0xFF000000;
+        }
+    }
+
+    // is the raster one bit per pixel, with 0 for black and 1 for white?
+    private boolean isBinaryLayout(WritableRaster raster) {
+        if (image.getType() != BufferedImage.TYPE_BYTE_BINARY)          { return false; }
+        if (!(raster.getSampleModel() instanceof MultiPixelPackedSampleModel)) { return false; }
+        if (!(raster.getDataBuffer() instanceof DataBufferByte))         { return false; }
+        if (raster.getSampleModel().getSampleSize(0) != 1)               { return false; }
+        IndexColorModel model = (IndexColorModel) image.getColorModel();
+        return model.getRGB(0) == 0xFF000000 && model.getRGB(1) == 0xFFFFFFFF;
+    }
+
+    // is the raster one byte plane per sRGB channel, all planes laid out alike?
+    private boolean isPlanarLayout(WritableRaster raster) {
+        if (!(raster.getSampleModel() instanceof BandedSampleModel)) { return false; }
+        if (!(raster.getDataBuffer() instanceof DataBufferByte))     { return false; }
+        if (!(image.getColorModel() instanceof ComponentColorModel)) { return false; }
+        if (!image.getColorModel().getColorSpace().isCS_sRGB())      { return false; }
+        if (image.getColorModel().isAlphaPremultiplied())            { return false; }
+        BandedSampleModel model = (BandedSampleModel) raster.getSampleModel();
+        int bands = model.getNumBands();
+        if (bands != 3 && bands != 4) { return false; }
+        int[] offsets = raster.getDataBuffer().getOffsets();
+        for (int b = 0; b < bands; b++) {
+            if (model.getBandOffsets()[b] != 0) { return false; }
+            if (offsets[model.getBankIndices()[b]] != offsets[0]) { return false; }
+        }
+        return true;
     }
 
    /**
@@ -174,31 +598,567 @@ public final class Picture implements ActionListener {
      * Return the Color of pixel (i, j).
      */
     public Color get(int i, int j) {
-        return new Color(image.getRGB(i, j));
+        return new Color(getRGB(i, j));
+    }
+
+   /**
+     * Return the color of pixel (i, j) as a packed 0xAARRGGBB int,
+     * without allocating a Color.
+     */
+    public int getRGB(int i, int j) {
+        if (pixels != null) {
+            validate(i, j, 1, 1);
+            return pixels[offset + j*stride + i] | opaque;
+        }
+        if (store != null) {
+            validate(i, j, 1, 1);
+            return store.getElem(offset + j*stride + i) | opaque;
+        }
+        if (planes != null) {
+            validate(i, j, 1, 1);
+            return pack(offset + j*stride + i);
+        }
+        if (bits != null) {
+            validate(i, j, 1, 1);
+            return bit(j, i) ? 0xFFFFFFFF : 0xFF000000;
+        }
+        return image.getRGB(i, j);
+    }
+
+    // the planar or grayscale pixel at index k as a packed 0xAARRGGBB int
+    private int pack(int k) {
+        if (planes.length == 1) { return opaque | (planes[0][k] & 0xFF) * 0x010101; }
+        int a = (planes.length == 4) ? (planes[3][k] & 0xFF) << 24 : opaque;
+        return a | (planes[0][k] & 0xFF) << 16 | (planes[1][k] & 0xFF) << 8 | (planes[2][k] & 0xFF);
+    }
+
+    // store the packed 0xAARRGGBB int rgb at planar or grayscale index k
+    private void unpack(int k, int rgb) {
+        if (planes.length == 1) { planes[0][k] = (byte) gray(rgb); return; }
+        planes[0][k] = (byte) (rgb >> 16);
+        planes[1][k] = (byte) (rgb >> 8);
+        planes[2][k] = (byte) rgb;
+        if (planes.length == 4) { planes[3][k] = (byte) (rgb >>> 24); }
+    }
+
+    // the gray level of the packed int rgb: the average of red, green and blue
+    private static int gray(int rgb) {
+        return (((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)) / 3;
+    }
+
+    // is pixel (i, j) of a binary picture white?
+    private boolean bit(int j, int i) {
+        int b = bitOffset + i;
+        return (bits[offset + j*stride + (b >> 3)] & (0x80 >> (b & 7))) != 0;
+    }
+
+    // set pixel (i, j) of a binary picture to white if white is true, black otherwise
+    private void bit(int j, int i, boolean white) {
+        int b = bitOffset + i;
+        int k = offset + j*stride + (b >> 3);
+        if (white) { bits[k] |=  (0x80 >> (b & 7)); }
+        else       { bits[k] &= ~(0x80 >> (b & 7)); }
     }
     
     /**
-     * Return the Color of pixel (i, j).
+     * Return the Colors of all pixels, indexed [row][column]. This allocates
+     * one Color per pixel; use getRGBArray() for a flat primitive copy.
      */
     public Color[][] getColorArray() {
     	Color[][] c = new Color[height()][width()];
     	for(int i = 0; i < c[0].length; i++)
     		for(int j = 0; j < c.length; j++)
-    			c[j][i] = new Color(image.getRGB(i, j));
+    			c[j][i] = new Color(getRGB(i, j));
         return c;
     }
 
+   /**
+     * Return all pixels as packed 0xAARRGGBB ints in row-major order:
+     * pixel (i, j) is at index j*width() + i.
+     */
+    public int[] getRGBArray() {
+        return getRGBArray(null);
+    }
+
+   /**
+     * Read all pixels into the given array as packed 0xAARRGGBB ints in
+     * row-major order and return it. The array is reused if it holds at least
+     * width()*height() elements, so repeated calls allocate nothing.
+     */
+    public int[] getRGBArray(int[] buffer) {
+        return getRegion(0, 0, width(), height(), buffer);
+    }
+
+   /**
+     * Set all pixels from the packed 0xAARRGGBB ints in the given array,
+     * in row-major order.
+     */
+    public void setRGBArray(int[] buffer) {
+        setRegion(0, 0, width(), height(), buffer);
+    }
+
    /**
      * Set the Color of pixel (i, j) to c.
      */
     public void set(int i, int j, Color c) {
         if (c == null) { throw new RuntimeException("can't set Color to null"); }
-        image.setRGB(i, j, c.getRGB());
+        setRGB(i, j, c.getRGB());
+    }
+
+   /**
+     * Set the color of pixel (i, j) to the packed 0xAARRGGBB int rgb.
+     */
+    public void setRGB(int i, int j, int rgb) {
+        if (backing.isShared()) { beforeWrite(); }
+        if (pixels != null) {
+            validate(i, j, 1, 1);
+            pixels[offset + j*stride + i] = rgb & ~opaque;
+        }
+        else if (store != null) {
+            validate(i, j, 1, 1);
+            store.setElem(offset + j*stride + i, rgb);
+        }
+        else if (planes != null) {
+            validate(i, j, 1, 1);
+            unpack(offset + j*stride + i, rgb);
+        }
+        else if (bits != null) {
+            validate(i, j, 1, 1);
+            bit(j, i, gray(rgb) >= 128);
+        }
+        else {
+            image.setRGB(i, j, rgb);
+        }
+    }
+
+   /**
+     * Read row j into the given array as packed 0xAARRGGBB ints and return it.
+     * A new array is allocated if row is null or shorter than the width.
+     */
+    public int[] getRow(int j, int[] row) {
+        return getRegion(0, j, width(), 1, row);
+    }
+
+   /**
+     * Set row j from the packed 0xAARRGGBB ints in the given array.
+     */
+    public void setRow(int j, int[] row) {
+        setRegion(0, j, width(), 1, row);
+    }
+
+   /**
+     * Read the w-by-h rectangle with upper left corner (x, y) into the given
+     * array in row-major order as packed 0xAARRGGBB ints, and return it.
+     * A new array is allocated if buffer is null or shorter than w*h.
+     */
+    public int[] getRegion(int x, int y, int w, int h, int[] buffer) {
+        validate(x, y, w, h);
+        if (buffer == null || buffer.length < w*h) { buffer = new int[w*h]; }
+        if (store != null) {
+            for (int j = 0, k = 0; j < h; j++, k += w) {
+                store.getElems(offset + (y + j)*stride + x, buffer, k, w);
+            }
+            if (opaque != 0) {
+                for (int k = 0; k < w*h; k++) { buffer[k] |= opaque; }
+            }
+            return buffer;
+        }
+        if (planes != null) {
+            for (int j = 0, k = 0; j < h; j++) {
+                int from = offset + (y + j)*stride + x;
+                for (int end = from + w; from < end; from++, k++) { buffer[k] = pack(from); }
+            }
+            return buffer;
+        }
+        if (bits != null) {
+            for (int j = 0, k = 0; j < h; j++) {
+                for (int i = 0; i < w; i++, k++) {
+                    buffer[k] = bit(y + j, x + i) ? 0xFFFFFFFF : 0xFF000000;
+                }
+            }
+            return buffer;
+        }
+        if (pixels == null) {
+            if (w > 0 && h > 0) { image.getRGB(x, y, w, h, buffer, 0, w); }
+            return buffer;
+        }
+        for (int j = 0, k = 0; j < h; j++) {
+            int from = offset + (y + j)*stride + x;
+            System.arraycopy(pixels, from, buffer, k, w);
+            if (opaque != 0) {
+                for (int end = k + w; k < end; k++) { buffer[k] |= opaque; }
+            }
+            else { k += w; }
+        }
+        return buffer;
+    }
+
+   /**
+     * Set the w-by-h rectangle with upper left corner (x, y) from the packed
+     * 0xAARRGGBB ints in the given array, in row-major order.
+     */
+    public void setRegion(int x, int y, int w, int h, int[] buffer) {
+        validate(x, y, w, h);
+        if (buffer == null || buffer.length < w*h) {
+            throw new IllegalArgumentException("buffer must hold " + w + "-by-" + h + " pixels");
+        }
+        if (backing.isShared()) { beforeWrite(); }
+        if (store != null) {
+            for (int j = 0, k = 0; j < h; j++, k += w) {
+                store.setElems(offset + (y + j)*stride + x, buffer, k, w);
+            }
+            return;
+        }
+        if (planes != null) {
+            for (int j = 0, k = 0; j < h; j++) {
+                int to = offset + (y + j)*stride + x;
+                for (int end = to + w; to < end; to++, k++) { unpack(to, buffer[k]); }
+            }
+            return;
+        }
+        if (bits != null) {
+            for (int j = 0, k = 0; j < h; j++) {
+                for (int i = 0; i < w; i++, k++) { bit(y + j, x + i, gray(buffer[k]) >= 128); }
+            }
+            return;
+        }
+        if (pixels == null) {
+            if (w > 0 && h > 0) { image.setRGB(x, y, w, h, buffer, 0, w); }
+            return;
+        }
+        int mask = ~opaque;
+        for (int j = 0, k = 0; j < h; j++) {
+            int to = offset + (y + j)*stride + x;
+            for (int end = to + w; to < end; to++, k++) { pixels[to] = buffer[k] & mask; }
+        }
+    }
+
+   /**
+     * Return the DataBufferInt backing this picture. Element
+     * getDataBuffer().getData()[y*width() + x] holds pixel (x, y) as 0xRRGGBB
+     * (0xAARRGGBB if the picture has alpha). Writing to the array changes the
+     * picture directly.
+     */
+    public DataBufferInt getDataBuffer() {
+        if (pixels == null) {
+            throw new RuntimeException("picture is not backed by a DataBufferInt");
+        }
+        if (isView()) { throw new RuntimeException("can't get the DataBufferInt of a view"); }
+        if (backing.isShared()) { beforeWrite(); }
+        return (DataBufferInt) image.getRaster().getDataBuffer();
+    }
+
+   /**
+     * Return a w-by-h view of this picture with upper left corner (x, y).
+     * The view shares this picture's raster: no pixels are copied, and
+     * changes made through either one are visible in the other. This holds
+     * for a view of a shared picture (see share()) too: the first change
+     * through either one copies the pixels once, for the picture and all
+     * its views together.
+     */
+    public Picture view(int x, int y, int w, int h) {
+        validate(x, y, w, h);
+        if (w == 0 || h == 0) { throw new IllegalArgumentException("view must not be empty"); }
+        Picture view = new Picture(image.getSubimage(x, y, w, h));
+        view.backing = backing;
+        view.rootX = rootX + x;
+        view.rootY = rootY + y;
+        backing.add(view);
+        return view;
+    }
+
+   /**
+     * Return a copy-on-write copy of this picture. The two share one raster
+     * until either is changed through setRGB(), setRegion() and the methods
+     * built on them, getDataBuffer(), getPlane() or getBufferedImage(); the
+     * picture being changed first takes its own copy of the pixels, so
+     * neither ever sees the other's changes. Views of either one, taken
+     * before or after the call, go along with it: they keep reading and
+     * writing the same pixels as the picture they were taken from.
+     */
+    public Picture share() {
+        Picture copy = new Picture(image);
+        copy.backing.pixels = backing.pixels;
+        copy.backing.pixels.users.incrementAndGet();
+        copy.filename = filename;
+        return copy;
+    }
+
+   /**
+     * Release what a tiled picture holds outside the heap: its decoder, the
+     * open image file and the spill file. Reading or writing the picture
+     * afterwards, or any view or share of it that still uses its tiles,
+     * throws an IllegalStateException. Does nothing for other pictures.
+     */
+    public void close() {
+        if (!(store instanceof TiledDataBuffer)) { return; }
+        try { ((TiledDataBuffer) store).close(); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not close " + filename + " (" + e.getMessage() + ")");
+        }
+    }
+
+   /**
+     * Does this picture have an alpha channel?
+     */
+    public boolean hasAlpha() {
+        return image.getColorModel().hasAlpha();
+    }
+
+    // give the raster of a shared picture its own copy of the pixels before
+    // it is changed, and point the picture and all its views at the copy;
+    // threads writing disjoint rows may race here, so only the first copies
+    private void beforeWrite() {
+        Backing raster = backing;
+        synchronized (raster) {
+            if (!raster.isShared()) { return; }
+            BufferedImage copy = new Picture(raster.root).copy().image;
+            Pixels old = raster.pixels;
+            raster.root = copy;
+            raster.pixels = new Pixels();
+            old.users.decrementAndGet();    // the last user left changes them in place
+            for (Picture member : raster.members()) {
+                if (member.rootX == 0 && member.rootY == 0
+                        && member.width() == copy.getWidth() && member.height() == copy.getHeight()) {
+                    member.image = copy;
+                }
+                else {
+                    member.image = copy.getSubimage(member.rootX, member.rootY, member.width(), member.height());
+                }
+                member.bind();
+                if (member.frame != null) {
+                    member.frame.setContentPane(member.getJLabel());
+                    member.frame.pack();
+                }
+            }
+        }
+    }
+
+    // the raster of a picture, which its views are cut from as well; pictures
+    // made by share() have a Backing of their own over the same Pixels
+    private static final class Backing {
+        private BufferedImage root;                 // image of the picture the raster was made for
+        private volatile Pixels pixels;             // the pixels, until a shared raster is changed
+        private final List<WeakReference<Picture>> members = new ArrayList<WeakReference<Picture>>();
+
+        Backing(BufferedImage root, Picture owner) {
+            this.root = root;
+            this.pixels = new Pixels();
+            members.add(new WeakReference<Picture>(owner));
+        }
+
+        boolean isShared() {
+            return pixels.users.get() > 1;
+        }
+
+        synchronized void add(Picture view) {
+            members.removeIf(member -> member.get() == null);
+            members.add(new WeakReference<Picture>(view));
+        }
+
+        // the pictures still using this raster
+        synchronized List<Picture> members() {
+            List<Picture> live = new ArrayList<Picture>();
+            for (WeakReference<Picture> member : members) {
+                Picture picture = member.get();
+                if (picture != null) { live.add(picture); }
+            }
+            return live;
+        }
+    }
+
+    // the pixels of one or more rasters; while more than one uses them, each
+    // copies them before its first change
+    private static final class Pixels {
+        private final AtomicInteger users = new AtomicInteger(1);
+    }
+
+    // does the raster start anywhere but the beginning of its arrays, or skip
+    // pixels between rows? (true for views)
+    private boolean isView() {
+        return offset != 0 || stride != width();
+    }
+
+   /**
+     * Is this picture in planar storage mode?
+     */
+    public boolean isPlanar() {
+        return planes != null && planes.length > 1;
+    }
+
+   /**
+     * Is this picture stored as one gray byte per pixel?
+     */
+    public boolean isGray() {
+        return planes != null && planes.length == 1;
+    }
+
+   /**
+     * Is this picture stored as one black-or-white bit per pixel?
+     */
+    public boolean isBinary() {
+        return bits != null;
+    }
+
+   /**
+     * Return the backing byte[] plane of the given channel of a planar
+     * picture: 0 for red, 1 for green, 2 for blue and 3 for alpha. Element
+     * j*width() + i holds the channel value of pixel (i, j) as an unsigned
+     * byte. Writing to the array changes the picture directly. A grayscale
+     * picture has the single plane 0, holding its gray levels.
+     */
+    public byte[] getPlane(int channel) {
+        if (planes == null) { throw new RuntimeException("picture is not planar or grayscale"); }
+        if (isView())       { throw new RuntimeException("can't get the planes of a view"); }
+        if (channel < 0 || channel >= planes.length) {
+            throw new IndexOutOfBoundsException("no channel " + channel + " in a picture with "
+                                                + planes.length + " planes");
+        }
+        if (backing.isShared()) { beforeWrite(); }
+        return planes[channel];
+    }
+
+   /**
+     * Return a copy of this picture in planar storage mode.
+     */
+    public Picture toPlanar() {
+        Picture copy = planar(width(), height(), image.getColorModel().hasAlpha());
+        copy.copyFrom(this);
+        return copy;
+    }
+
+   /**
+     * Return a grayscale copy of this picture, one byte per pixel.
+     */
+    public Picture toGray() {
+        Picture copy = gray(width(), height());
+        copy.copyFrom(this);
+        return copy;
+    }
+
+   /**
+     * Return a black-and-white copy of this picture, one bit per pixel: a
+     * pixel is white if its gray level is greater than threshold.
+     */
+    public Picture toBinary(int threshold) {
+        Picture copy = binary(width(), height());
+        int[] row = new int[width()];
+        for (int j = 0; j < height(); j++) {
+            getRow(j, row);
+            for (int i = 0; i < row.length; i++) {
+                copy.bit(j, i, gray(row[i]) > threshold);
+            }
+        }
+        return copy;
+    }
+
+   /**
+     * Return the red, green, blue and luminance histograms of this picture,
+     * counted in parallel.
+     */
+    public Histogram histogram() {
+        return Histogram.of(this);
+    }
+
+   /**
+     * Return the summed-area table of this picture, for constant-time sums
+     * of the red, green and blue channels over any rectangle.
+     */
+    public SummedAreaTable summedAreaTable() {
+        return new SummedAreaTable(this);
+    }
+
+   /**
+     * Return this picture in the most compact storage that holds it exactly:
+     * a binary copy if every pixel is black or white, a grayscale copy if
+     * every pixel is gray, and this picture itself otherwise.
+     */
+    public Picture compact() {
+        if (bits != null || image.getColorModel().hasAlpha()) { return this; }
+        boolean binary = true;
+        int[] row = new int[width()];
+        for (int j = 0; j < height(); j++) {
+            getRow(j, row);
+            for (int i = 0; i < row.length; i++) {
+                int rgb = row[i] & 0xFFFFFF;
+                if (rgb != (rgb & 0xFF) * 0x010101) { return this; }
+                if (rgb != 0 && rgb != 0xFFFFFF) { binary = false; }
+            }
+        }
+        if (binary)   { return toBinary(127); }
+        if (isGray()) { return this; }
+        return toGray();
+    }
+
+   /**
+     * Return a copy of this picture with a packed TYPE_INT_RGB (or
+     * TYPE_INT_ARGB) raster.
+     */
+    public Picture toPacked() {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                                                    : BufferedImage.TYPE_INT_RGB;
+        Picture copy = new Picture(new BufferedImage(width(), height(), type));
+        copy.copyFrom(this);
+        return copy;
+    }
+
+   /**
+     * Return a copy of this picture in the same storage type. The copy of a
+     * mapped or tiled picture is held on the heap.
+     */
+    public Picture copy() {
+        Picture copy;
+        if (store != null) { copy = toPacked(); }
+        else {
+            WritableRaster raster = image.getRaster().createCompatibleWritableRaster(width(), height());
+            image.copyData(raster);
+            copy = new Picture(new BufferedImage(image.getColorModel(), raster,
+                                                 image.isAlphaPremultiplied(), null));
+        }
+        copy.filename = filename;
+        return copy;
+    }
+
+   /**
+     * Return the BufferedImage backing this picture. The image is not copied,
+     * so changes to either one are visible in the other. A shared picture
+     * first takes its own copy of the pixels, as it would before a change.
+     * For a grayscale picture this is a view of its raster through a gray
+     * palette, so that the image's getRGB() returns the stored gray levels,
+     * as getRGB() does, instead of converting them from linear gray to sRGB.
+     */
+    public BufferedImage getBufferedImage() {
+        if (backing.isShared()) { beforeWrite(); }
+        if (isGray()) { return new BufferedImage(GRAY_LEVELS, image.getRaster(), false, null); }
+        return image;
+    }
+
+    // the palette that maps each byte to the gray with that level
+    private static IndexColorModel grayLevels() {
+        byte[] levels = new byte[256];
+        for (int v = 0; v < 256; v++) { levels[v] = (byte) v; }
+        return new IndexColorModel(8, 256, levels, levels, levels);
+    }
+
+    // copy the pixels of a picture of the same size into this one, row by row
+    private void copyFrom(Picture that) {
+        int[] row = new int[width()];
+        for (int j = 0; j < height(); j++) {
+            setRow(j, that.getRow(j, row));
+        }
+    }
+
+    // throw an exception unless the w-by-h rectangle at (x, y) lies in the picture
+    private void validate(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width() || y + h > height()) {
+            throw new IndexOutOfBoundsException("region (" + x + ", " + y + ") " + w + "-by-" + h
+                                                + " is outside the " + width() + "-by-" + height() + " picture");
+        }
     }
 
    /**
      * Save the picture to a file in a standard image format.
-     * The filetype must be .png or .jpg.
+     * The filetype must be .png, .jpg, .pbm, .pgm, .ppm, .pnm, or .raw.
      */
     public void save(String name) {
         save(new File(name));
@@ -206,19 +1166,57 @@ public final class Picture implements ActionListener {
 
    /**
      * Save the picture to a file in a standard image format.
+     * The filetype must be .png, .jpg, .pbm, .pgm, .ppm, .pnm, or .raw.
      */
     public void save(File file) {
-        this.filename = file.getName();
-        if (frame != null) { frame.setTitle(filename); }
-        String suffix = filename.substring(filename.lastIndexOf('.') + 1);
+        String suffix = file.getName().substring(file.getName().lastIndexOf('.') + 1);
         suffix = suffix.toLowerCase();
-        if (suffix.equals("jpg") || suffix.equals("png")) {
-            try { ImageIO.write(image, suffix, file); }
-            catch (IOException e) { e.printStackTrace(); }
+        if (suffix.equals("jpg") || suffix.equals("png") || Pnm.handles(file.getName())) {
+            try { save(file, ENCODER); }
+            catch (RuntimeException e) { e.printStackTrace(); }
         }
         else {
-            System.out.println("Error: filename must end in .jpg or .png");
+            System.out.println("Error: filename must end in .jpg, .png, .pbm, .pgm, .ppm, .pnm, or .raw");
+        }
+    }
+
+   /**
+     * Save the picture to a file with the given encoder, in any format that
+     * has an ImageIO writer. The format is given by the file suffix.
+     */
+    public void save(File file, PictureEncoder encoder) {
+        this.filename = file.getName();
+        if (frame != null) { frame.setTitle(filename); }
+        encoder.write(this, file);
+    }
+
+   /**
+     * Save a snapshot of the picture to a file in the background, in the
+     * format given by the file suffix, and return a Future that yields the
+     * file once it is written. Blocks while too many saves are pending.
+     */
+    public Future<File> saveAsync(String name) {
+        return saveAsync(new File(name));
+    }
+
+   /**
+     * Save a snapshot of the picture to a file in the background, in the
+     * format given by the file suffix, and return a Future that yields the
+     * file once it is written. Blocks while too many saves are pending.
+     */
+    public Future<File> saveAsync(File file) {
+        this.filename = file.getName();
+        if (frame != null) { frame.setTitle(filename); }
+        return saveQueue().submit(this, file);
+    }
+
+    // the queue used by saveAsync(): one encoder thread per processor
+    private static synchronized SaveQueue saveQueue() {
+        if (saves == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            saves = new SaveQueue(threads, 2 * threads, new PictureEncoder());
         }
+        return saves;
     }
 
    /**
@@ -0,0 +1,182 @@
+/*************************************************************************
+ *  Compilation:  javac PictureCache.java
+ *  Execution:    java PictureCache imagename n
+ *
+ *  In-memory cache of decoded pictures, bounded by the bytes of their
+ *  rasters and evicting the least recently used. Every load returns a
+ *  copy-on-write share of the cached picture, so callers can change what
+ *  they get without corrupting the cache.
+ *
+ *  % java PictureCache lich.png 1000
+ *
+ *************************************************************************/
+
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *  This class provides an LRU cache of decoded image files for programs that
+ *  load the same files over and over. Files are keyed by canonical path and
+ *  checked against their modification time and length on each hit, so a
+ *  changed file is decoded again. The total size of the cached rasters is
+ *  kept at most capacity bytes; a picture larger than that is returned
+ *  without being cached. The methods are thread-safe. Two threads missing
+ *  on the same file at once may both decode it.
+ */
+public final class PictureCache {
+    private final long capacity;        // most raster bytes to keep
+    private long bytes;                 // raster bytes now kept
+    private long hits;                  // loads answered from the cache
+    private long misses;                // loads that decoded the file
+
+    // cached pictures by canonical path, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // a cached picture and the file state it was decoded from
+    private static final class Entry {
+        final Picture picture;
+        final long modified;
+        final long length;
+        final long bytes;
+
+        Entry(Picture picture, long modified, long length, long bytes) {
+            this.picture  = picture;
+            this.modified = modified;
+            this.length   = length;
+            this.bytes    = bytes;
+        }
+    }
+
+   /**
+     * Create a cache that keeps at most capacity bytes of decoded pixels.
+     */
+    public PictureCache(long capacity) {
+        if (capacity < 0) { throw new IllegalArgumentException("capacity must be nonnegative"); }
+        this.capacity = capacity;
+    }
+
+   /**
+     * Load the image file with the given name, decoding it only if it is not
+     * cached or has changed since it was.
+     */
+    public Picture load(String filename) {
+        return load(new File(filename));
+    }
+
+   /**
+     * Load the given image file, decoding it only if it is not cached or has
+     * changed since it was. The returned picture is a copy-on-write share of
+     * the cached one (see Picture.share()).
+     */
+    public Picture load(File file) {
+        String key;
+        try { key = file.getCanonicalPath(); }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open file: " + file);
+        }
+        long modified = file.lastModified();
+        long length = file.length();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.modified == modified && entry.length == length) {
+                hits++;
+                return entry.picture.share();
+            }
+            misses++;
+        }
+
+        // decode without holding the lock, so other files can still be served
+        Picture picture = new Picture(file);
+        long size = bytes(picture);
+        synchronized (this) {
+            Entry old = entries.remove(key);
+            if (old != null) { bytes -= old.bytes; }
+            if (size <= capacity) {
+                entries.put(key, new Entry(picture, modified, length, size));
+                bytes += size;
+                evict();
+            }
+        }
+        return picture.share();
+    }
+
+   /**
+     * Return the number of loads answered from the cache.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+   /**
+     * Return the number of loads that had to decode the file.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+   /**
+     * Return the total bytes of the cached rasters.
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+   /**
+     * Return the number of cached pictures.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+   /**
+     * Remove every picture from the cache. The counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    // drop least recently used entries until the cache fits its capacity
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            bytes -= it.next().getValue().bytes;
+            it.remove();
+        }
+    }
+
+    // bytes held by the raster of a picture
+    private static long bytes(Picture picture) {
+        DataBuffer buffer = picture.getBufferedImage().getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks()
+             * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+
+   /**
+     * Test client. Loads the picture named by the first command-line argument
+     * n times through a cache, changes each copy, and reports the time per
+     * load and the hit and miss counts.
+     */
+    public static void main(String[] args) {
+        PictureCache cache = new PictureCache(256L << 20);
+        int n = Integer.parseInt(args[1]);
+        long start = System.nanoTime();
+        for (int k = 0; k < n; k++) {
+            Picture picture = cache.load(args[0]);
+            if (k == n - 1) { picture.setRGB(0, 0, 0xFF0000); }
+        }
+        long elapsed = System.nanoTime() - start;
+        Picture picture = cache.load(args[0]);
+        System.out.printf("%.3f ms per load, %d hits, %d misses, %d bytes cached, pixel (0, 0) = %06x\n",
+                          elapsed / 1e6 / n, cache.hits(), cache.misses(), cache.bytes(),
+                          picture.getRGB(0, 0) & 0xFFFFFF);
+    }
+
+}
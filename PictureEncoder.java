@@ -0,0 +1,237 @@
+/*************************************************************************
+ *  Compilation:  javac PictureEncoder.java
+ *  Execution:    java PictureEncoder imagename output
+ *
+ *  Configurable image encoder for Picture.save(). Holds the JPEG quality,
+ *  PNG compression level and progressive setting, and keeps one
+ *  ImageWriter per format so that repeated saves skip the writer lookup.
+ *  PNGs can instead be deflated in parallel bands by ParallelPngWriter.
+ *
+ *  % java PictureEncoder lich.png lich-fast.png
+ *
+ *************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+
+/**
+ *  This class provides an encoder that saves pictures with explicit
+ *  ImageWriteParam settings. The format is chosen from the file suffix,
+ *  and any format with an ImageIO writer is accepted, as well as the PNM
+ *  and raw formats written by Pnm. The setters return
+ *  the encoder, so settings can be chained:
+ *  <pre>
+ *      PictureEncoder encoder = new PictureEncoder().pngCompression(1);
+ *      picture.save(file, encoder);
+ *  </pre>
+ *  The ImageWriters are reused across saves; an encoder saves one picture
+ *  at a time, so threads that save concurrently should use their own.
+ */
+public final class PictureEncoder {
+    private float jpegQuality = -1;     // JPEG quality in [0, 1], or -1 for the writer default
+    private int pngCompression = -1;    // PNG deflate level in [0, 9], or -1 for the writer default
+    private boolean progressive;        // progressive JPEG, interlaced PNG?
+    private boolean parallelPng;        // write PNGs with ParallelPngWriter?
+    private int pngFilter = ParallelPngWriter.ADAPTIVE; // PNG row filter for ParallelPngWriter
+    private final Map<String, ImageWriter> writers = new HashMap<String, ImageWriter>();
+
+   /**
+     * Create an encoder with the default settings of each ImageWriter.
+     */
+    public PictureEncoder() { }
+
+   /**
+     * Create an encoder with the same settings as that one, but its own
+     * ImageWriters.
+     */
+    public PictureEncoder(PictureEncoder that) {
+        this.jpegQuality    = that.jpegQuality;
+        this.pngCompression = that.pngCompression;
+        this.progressive    = that.progressive;
+        this.parallelPng    = that.parallelPng;
+        this.pngFilter      = that.pngFilter;
+    }
+
+   /**
+     * Set the JPEG quality, from 0.0 (smallest file) to 1.0 (best quality).
+     */
+    public PictureEncoder jpegQuality(float quality) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("JPEG quality must be between 0 and 1");
+        }
+        jpegQuality = quality;
+        return this;
+    }
+
+   /**
+     * Set the PNG deflate level, from 0 (fastest, no compression) to 9
+     * (slowest, smallest file).
+     */
+    public PictureEncoder pngCompression(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9");
+        }
+        pngCompression = level;
+        return this;
+    }
+
+   /**
+     * Write progressive JPEGs and interlaced (Adam7) PNGs if progressive is true.
+     */
+    public PictureEncoder progressive(boolean progressive) {
+        this.progressive = progressive;
+        return this;
+    }
+
+   /**
+     * Write PNGs with ParallelPngWriter, which deflates bands of rows on all
+     * processors, if parallel is true. Interlaced PNGs are still written by
+     * the ImageIO writer.
+     */
+    public PictureEncoder parallelPng(boolean parallel) {
+        parallelPng = parallel;
+        return this;
+    }
+
+   /**
+     * Set the PNG row filter to one of the ParallelPngWriter filter constants,
+     * such as ParallelPngWriter.SUB or ParallelPngWriter.ADAPTIVE. Since the
+     * ImageIO writer picks its own filters, this also turns on parallelPng.
+     */
+    public PictureEncoder pngFilter(int filter) {
+        if (filter < ParallelPngWriter.NONE || filter > ParallelPngWriter.ADAPTIVE) {
+            throw new IllegalArgumentException("unknown PNG filter " + filter);
+        }
+        pngFilter = filter;
+        parallelPng = true;
+        return this;
+    }
+
+   /**
+     * Save the picture to the given file, in the format named by its suffix.
+     */
+    public synchronized void write(Picture picture, File file) {
+        String name = file.getName();
+        String suffix = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        if (Pnm.handles(name)) {
+            try {
+                Pnm.write(picture, file);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not save file: " + file + " (" + e.getMessage() + ")");
+            }
+            return;
+        }
+        if (suffix.equals("png") && parallelPng && !progressive) {
+            int level = (pngCompression >= 0) ? pngCompression : 6;
+            try {
+                ParallelPngWriter.write(picture, file, level, pngFilter);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not save file: " + file + " (" + e.getMessage() + ")");
+            }
+            return;
+        }
+        ImageWriter writer = writer(suffix);
+        BufferedImage image = picture.getBufferedImage();
+        if (isJpeg(suffix) && image.getColorModel().hasAlpha()) {
+            image = opaque(picture);
+        }
+        file.delete();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+            if (output == null) { throw new IOException("can't create " + file); }
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param(writer, suffix));
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not save file: " + file + " (" + e.getMessage() + ")");
+        }
+        finally {
+            writer.reset();
+        }
+    }
+
+   /**
+     * Release the cached ImageWriters.
+     */
+    public synchronized void dispose() {
+        for (ImageWriter writer : writers.values()) {
+            writer.dispose();
+        }
+        writers.clear();
+    }
+
+    // the cached writer for the given suffix, looked up on first use
+    private ImageWriter writer(String suffix) {
+        ImageWriter writer = writers.get(suffix);
+        if (writer == null) {
+            Iterator<ImageWriter> candidates = ImageIO.getImageWritersBySuffix(suffix);
+            if (!candidates.hasNext()) {
+                throw new RuntimeException("no image writer for ." + suffix + " files");
+            }
+            writer = candidates.next();
+            writers.put(suffix, writer);
+        }
+        return writer;
+    }
+
+    // the write parameters for this encoder's settings
+    private ImageWriteParam param(ImageWriter writer, String suffix) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (isJpeg(suffix) && jpegQuality >= 0) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+        }
+        if (suffix.equals("png") && pngCompression >= 0) {
+            // the PNG writer uses deflate level (int) (9 * (1 - quality))
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(0f, 1f - (pngCompression + 0.5f) / 9f));
+        }
+        if (param.canWriteProgressive()) {
+            if (progressive) { param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);  }
+            else             { param.setProgressiveMode(ImageWriteParam.MODE_DISABLED); }
+        }
+        return param;
+    }
+
+    private static boolean isJpeg(String suffix) {
+        return suffix.equals("jpg") || suffix.equals("jpeg");
+    }
+
+    // a TYPE_INT_RGB copy of a picture, since JPEG has no alpha channel
+    private static BufferedImage opaque(Picture picture) {
+        int w = picture.width();
+        BufferedImage image = new BufferedImage(w, picture.height(), BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[w];
+        for (int j = 0; j < picture.height(); j++) {
+            image.setRGB(0, j, w, 1, picture.getRow(j, row), 0, w);
+        }
+        return image;
+    }
+
+
+   /**
+     * Test client. Saves the picture named by the first command-line argument
+     * to the file named by the second, with fast parallel PNG compression
+     * and JPEG quality 0.85.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        PictureEncoder encoder = new PictureEncoder().pngCompression(1).parallelPng(true).jpegQuality(0.85f);
+        long start = System.nanoTime();
+        picture.save(new File(args[1]), encoder);
+        System.out.printf("%s: %.1f ms, %d bytes\n", args[1], (System.nanoTime() - start) / 1e6,
+                          new File(args[1]).length());
+    }
+
+}
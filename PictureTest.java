@@ -0,0 +1,197 @@
+/*************************************************************************
+ *  Compilation:  javac PictureTest.java
+ *  Execution:    java PictureTest
+ *
+ *  Checks of Picture behavior that the test clients don't exercise.
+ *  Prints one line per check and exits with status 1 if any fails.
+ *
+ *  % java PictureTest
+ *  gray accessors agree: ok
+ *  ...
+ *
+ *************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import javax.imageio.ImageIO;
+
+
+public final class PictureTest {
+    private static int failures = 0;
+
+    private PictureTest() { }
+
+    private static void check(String name, boolean ok) {
+        System.out.println(name + ": " + (ok ? "ok" : "FAILED"));
+        if (!ok) { failures++; }
+    }
+
+    // get(), getRGB(), getColorArray() and getBufferedImage().getRGB() see
+    // the same color for every pixel of the picture
+    private static boolean accessorsAgree(Picture picture) {
+        java.awt.Color[][] colors = picture.getColorArray();
+        BufferedImage image = picture.getBufferedImage();
+        for (int j = 0; j < picture.height(); j++) {
+            for (int i = 0; i < picture.width(); i++) {
+                int rgb = picture.getRGB(i, j);
+                if (picture.get(i, j).getRGB() != rgb) { return false; }
+                if (colors[j][i].getRGB() != rgb)      { return false; }
+                if (image.getRGB(i, j) != rgb)         { return false; }
+            }
+        }
+        return true;
+    }
+
+    private static void grayAccessors() throws IOException {
+        // a gray PNG with levels 0, 64, 128, 255 reads back as those levels
+        BufferedImage levels = new BufferedImage(4, 1, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] data = ((java.awt.image.DataBufferByte) levels.getRaster().getDataBuffer()).getData();
+        data[0] = 0;
+        data[1] = 64;
+        data[2] = (byte) 128;
+        data[3] = (byte) 255;
+        File file = File.createTempFile("gray", ".png");
+        try {
+            ImageIO.write(levels, "png", file);
+            Picture picture = new Picture(file);
+            check("gray file is gray", picture.isGray());
+            check("gray file level 64", picture.getRGB(1, 0) == 0xFF404040);
+            check("gray file accessors agree", accessorsAgree(picture));
+        }
+        finally { file.delete(); }
+
+        Picture gray = Picture.gray(3, 2);
+        gray.setRGB(0, 0, 0x404040);
+        gray.setRGB(1, 0, 0x102030);
+        gray.setRGB(2, 1, 0xFFFFFF);
+        check("gray set level 64", gray.getRGB(0, 0) == 0xFF404040);
+        check("gray set average", gray.getRGB(1, 0) == 0xFF202020);
+        check("gray accessors agree", accessorsAgree(gray));
+
+        // writes through the BufferedImage view land as the same levels
+        gray.getBufferedImage().setRGB(2, 0, 0x808080);
+        check("gray view write", gray.getRGB(2, 0) == 0xFF808080);
+    }
+
+    private static void viewThenShare() {
+        // a view taken before share() keeps writing through to its parent,
+        // and neither reaches the share
+        Picture picture = new Picture(4, 4);
+        Picture view = picture.view(1, 1, 2, 2);
+        Picture share = picture.share();
+        view.setRGB(0, 0, 0xFF0000);
+        check("view write leaves share", share.getRGB(1, 1) == 0xFF000000);
+        check("view write reaches owner", picture.getRGB(1, 1) == 0xFFFF0000);
+        check("view write lands", view.getRGB(0, 0) == 0xFFFF0000);
+        picture.setRGB(2, 2, 0x0000FF);
+        check("owner write reaches view", view.getRGB(1, 1) == 0xFF0000FF);
+
+        // and the other way around: writes to the share don't reach the view
+        share.setRGB(1, 2, 0x00FF00);
+        check("share write leaves view", view.getRGB(0, 1) == 0xFF000000);
+        check("share write lands", share.getRGB(1, 2) == 0xFF00FF00);
+
+        // views of views, taken after share(), write through to the owner
+        Picture owner = new Picture(8, 8);
+        Picture copy = owner.share();
+        Picture inner = owner.view(2, 2, 4, 4).view(1, 1, 2, 2);
+        inner.setRGB(1, 1, 0x0000FF);
+        check("nested view write reaches owner", owner.getRGB(4, 4) == 0xFF0000FF);
+        check("nested view write leaves share", copy.getRGB(4, 4) == 0xFF000000);
+
+        // the last picture left on the old pixels changes them in place
+        BufferedImage original = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        Picture first = new Picture(original);
+        Picture second = first.share();
+        second.setRGB(0, 0, 0xFFFFFF);
+        first.setRGB(1, 1, 0xFFFFFF);
+        check("last user keeps its pixels", first.getBufferedImage() == original
+                                            && original.getRGB(1, 1) == 0xFFFFFFFF
+                                            && original.getRGB(0, 0) == 0xFF000000);
+
+        // views of an unshared picture still write through
+        Picture plain = new Picture(4, 4);
+        plain.view(2, 2, 2, 2).setRGB(1, 1, 0xFFFFFF);
+        check("unshared view writes through", plain.getRGB(3, 3) == 0xFFFFFFFF);
+    }
+
+    private static void tiledClose() throws IOException {
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        Set<String> before = spillFiles(tmp);
+        // two tiles fit in the budget, so writing four spills two
+        Picture tiled = Picture.tiled(256, 64, 64, 2 * 4 * 64 * 64);
+        for (int x = 0; x < 256; x += 64) { tiled.setRGB(x, 0, 0xFF0000); }
+        Set<String> spilled = spillFiles(tmp);
+        spilled.removeAll(before);
+        check("tiled writes spill", spilled.size() == 1 && tiled.getRGB(0, 0) == 0xFFFF0000);
+        tiled.close();
+        spilled.retainAll(spillFiles(tmp));
+        check("tiled close deletes spill", spilled.isEmpty());
+        tiled.close();
+        check("tiled close twice", true);
+        boolean rejected;
+        try {
+            tiled.getRGB(64, 0);    // a spilled tile
+            rejected = false;
+        }
+        catch (IllegalStateException e) { rejected = true; }
+        check("closed tiled picture rejects reads", rejected);
+
+        // a tiled picture decoded from a file, in try-with-resources
+        File file = File.createTempFile("tiled", ".png");
+        try {
+            ImageIO.write(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB), "png", file);
+            try (Picture picture = Picture.tiled(file.getPath(), 32, 1 << 20)) {
+                check("tiled file reads", picture.getRGB(99, 99) == 0xFF000000);
+            }
+        }
+        finally { file.delete(); }
+    }
+
+    private static Set<String> spillFiles(File directory) {
+        Set<String> names = new HashSet<String>();
+        String[] all = directory.list();
+        if (all == null) { return names; }
+        for (String name : all) {
+            if (name.startsWith("tiles") && name.endsWith(".spill")) { names.add(name); }
+        }
+        return names;
+    }
+
+    private static void mappedTooLarge() throws IOException {
+        // a header claiming 65536-by-65536 pixels, more than one DataBuffer holds
+        File file = File.createTempFile("huge", ".pxm");
+        try {
+            try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw")) {
+                raf.writeInt(0x50584D31);
+                raf.writeInt(65536);
+                raf.writeInt(65536);
+                raf.writeInt(0);
+            }
+            String message = null;
+            try { MappedDataBuffer.open(file, java.nio.channels.FileChannel.MapMode.READ_ONLY); }
+            catch (IOException e) { message = e.getMessage(); }
+            check("mapped too large", message != null && message.contains("too large"));
+        }
+        finally { file.delete(); }
+    }
+
+
+   /**
+     * Run every check.
+     */
+    public static void main(String[] args) throws IOException {
+        grayAccessors();
+        viewThenShare();
+        tiledClose();
+        mappedTooLarge();
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+    }
+
+}
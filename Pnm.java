@@ -0,0 +1,483 @@
+/*************************************************************************
+ *  Compilation:  javac Pnm.java
+ *  Execution:    java Pnm imagename output
+ *
+ *  Reader and writer for binary PBM (P4), PGM (P5) and PPM (P6) files and
+ *  for raw headerless pixel files. The bytes go through a FileChannel and
+ *  a direct ByteBuffer, a block of rows at a time, straight into or out of
+ *  the raster, so saving and loading intermediate pictures between stages
+ *  of a pipeline runs at disk speed instead of codec speed. Reader and
+ *  Writer stream one row at a time, for images too large to hold.
+ *
+ *  % java Pnm lich.png lich.ppm
+ *
+ *  Remarks
+ *  -------
+ *   - PGM files are read into grayscale pictures and PBM files into
+ *     black-and-white pictures, so they keep their compact storage
+ *
+ *   - samples with a maxval other than 255, including 16-bit samples,
+ *     are scaled to 0-255
+ *
+ *************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ *  This class provides the PNM and raw formats used by Picture for files
+ *  ending in .pbm, .pgm, .ppm, .pnm and .raw. read() returns the image in
+ *  the storage Picture uses: TYPE_BYTE_BINARY for P4, TYPE_BYTE_GRAY for P5
+ *  and TYPE_INT_RGB for P6. write() picks the format from the suffix; .pnm
+ *  picks the smallest format that holds the picture. Raw files hold 1, 3
+ *  or 4 bytes per pixel (gray, RGB or RGBA) in row-major order; since they
+ *  have no header, readRaw() is told the dimensions.
+ */
+public final class Pnm {
+    private static final int BUFFER = 1 << 20;  // bytes moved per channel read or write
+
+    // pixel layouts of a file, by bytes per pixel where that applies
+    private static final int BITS = 0;          // 1 bit per pixel, 1 is black
+    private static final int GRAY = 1;          // 1 sample per pixel
+    private static final int RGB  = 3;          // 3 samples per pixel
+    private static final int RGBA = 4;          // 4 samples per pixel
+
+    private Pnm() { }
+
+   /**
+     * Reads the rows of a PNM or raw file one at a time, top to bottom, as
+     * packed 0xAARRGGBB ints. Only one buffer of the file is held at a time.
+     */
+    public static final class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private ByteBuffer buffer;          // unread bytes of the file, in read mode
+        private final int width;
+        private final int height;
+        private final int layout;           // BITS, GRAY, RGB or RGBA
+        private final int rowBytes;         // bytes per row in the file
+        private final int[] scale;          // sample value to 0-255, or null if maxval is 255
+        private final boolean wide;         // 16-bit samples?
+        private final byte[] bytes;         // the current row
+        private int rows;                   // rows read so far
+
+       /**
+         * Open a binary PBM, PGM or PPM file and read its header.
+         */
+        public Reader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                buffer = ByteBuffer.allocateDirect(BUFFER);
+                buffer.flip();
+                ensure(2);
+                if (buffer.get() != 'P') { throw new IOException("not a PNM file: " + file); }
+                int magic = buffer.get();
+                if      (magic == '4') { layout = BITS; }
+                else if (magic == '5') { layout = GRAY; }
+                else if (magic == '6') { layout = RGB;  }
+                else if (magic >= '1' && magic <= '3') {
+                    throw new IOException("plain (ASCII) PNM is not supported: " + file);
+                }
+                else { throw new IOException("not a PNM file: " + file); }
+
+                width  = number();
+                height = number();
+                int maxval = (layout == BITS) ? 1 : number();
+                if (width <= 0 || height <= 0)     { throw new IOException("bad PNM dimensions in " + file); }
+                if (maxval <= 0 || maxval > 65535) { throw new IOException("bad PNM maxval in " + file); }
+                ensure(1);
+                buffer.get();               // the single whitespace byte before the pixels
+
+                wide = maxval > 255;
+                rowBytes = rowBytes(width, layout, maxval);
+                bytes = new byte[rowBytes];
+                if (maxval == 255 || layout == BITS) { scale = null; }
+                else {
+                    scale = new int[maxval + 1];
+                    for (int v = 0; v <= maxval; v++) { scale[v] = (v * 255 + maxval / 2) / maxval; }
+                }
+                fit();
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+       /**
+         * Open a raw headerless file holding a w-by-h image with the given
+         * number of bytes per pixel: 1 for gray, 3 for RGB or 4 for RGBA.
+         */
+        public Reader(File file, int w, int h, int bands) throws IOException {
+            if (bands != GRAY && bands != RGB && bands != RGBA) {
+                throw new IllegalArgumentException("raw files have 1, 3 or 4 bands, not " + bands);
+            }
+            if (w <= 0 || h <= 0) { throw new IllegalArgumentException("width and height must be positive"); }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (channel.size() != (long) w * h * bands) {
+                long size = channel.size();
+                channel.close();
+                throw new IOException(file + " holds " + size + " bytes, not " + w + "*" + h + "*" + bands);
+            }
+            width    = w;
+            height   = h;
+            layout   = bands;
+            rowBytes = rowBytes(w, bands, 255);
+            bytes    = new byte[rowBytes];
+            scale    = null;
+            wide     = false;
+            buffer   = ByteBuffer.allocateDirect(BUFFER);
+            buffer.flip();
+            fit();
+        }
+
+       /**
+         * Return the width of the image (in pixels).
+         */
+        public int width() {
+            return width;
+        }
+
+       /**
+         * Return the height of the image (in pixels).
+         */
+        public int height() {
+            return height;
+        }
+
+       /**
+         * Does the file hold gray levels or black and white only?
+         */
+        public boolean isGray() {
+            return layout == GRAY || layout == BITS;
+        }
+
+       /**
+         * Read the next row into the given array as packed 0xAARRGGBB ints and
+         * return it. A new array is allocated if row is null or shorter than
+         * the width.
+         */
+        public int[] readRow(int[] row) throws IOException {
+            if (rows == height) { throw new EOFException("all " + height + " rows have been read"); }
+            if (row == null || row.length < width) { row = new int[width]; }
+            ensure(rowBytes);
+            buffer.get(bytes, 0, rowBytes);
+            rows++;
+            if (layout == BITS) {
+                for (int i = 0; i < width; i++) {
+                    boolean black = (bytes[i >> 3] & (0x80 >>> (i & 7))) != 0;
+                    row[i] = black ? 0xFF000000 : 0xFFFFFFFF;
+                }
+            }
+            else if (layout == GRAY) {
+                for (int i = 0; i < width; i++) { row[i] = 0xFF000000 | 0x010101 * sample(i); }
+            }
+            else {
+                int alpha = (layout == RGB) ? 0xFF000000 : 0;
+                for (int i = 0, k = 0; i < width; i++, k += layout) {
+                    int rgb = (sample(k) << 16) | (sample(k + 1) << 8) | sample(k + 2);
+                    if (layout == RGBA) { rgb |= bytes[k+3] << 24; }
+                    row[i] = rgb | alpha;
+                }
+            }
+            return row;
+        }
+
+       /**
+         * Close the file.
+         */
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        // read all rows into a new image, straight into its raster
+        private BufferedImage readImage() throws IOException {
+            if (rows != 0) { throw new IllegalStateException("rows have already been read"); }
+            int w = width;
+            BufferedImage image;
+            if      (layout == BITS) { image = new BufferedImage(w, height, BufferedImage.TYPE_BYTE_BINARY); }
+            else if (layout == GRAY) { image = new BufferedImage(w, height, BufferedImage.TYPE_BYTE_GRAY);   }
+            else if (layout == RGB)  { image = new BufferedImage(w, height, BufferedImage.TYPE_INT_RGB);     }
+            else                     { image = new BufferedImage(w, height, BufferedImage.TYPE_INT_ARGB);    }
+
+            if (layout == BITS || layout == GRAY) {
+                byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                for (int j = 0; j < height; j++) {
+                    ensure(rowBytes);
+                    int o = j * ((layout == BITS) ? rowBytes : w);
+                    if (layout == BITS) {
+                        // same bit packing as TYPE_BYTE_BINARY, but there 1 is white
+                        buffer.get(data, o, rowBytes);
+                        for (int k = o; k < o + rowBytes; k++) { data[k] = (byte) ~data[k]; }
+                    }
+                    else if (scale == null) {
+                        buffer.get(data, o, w);
+                    }
+                    else {
+                        buffer.get(bytes, 0, rowBytes);
+                        for (int i = 0; i < w; i++) { data[o + i] = (byte) sample(i); }
+                    }
+                }
+                rows = height;
+            }
+            else {
+                int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                int[] row = new int[w];
+                for (int j = 0; j < height; j++) {
+                    readRow(row);
+                    System.arraycopy(row, 0, data, j * w, w);
+                }
+            }
+            return image;
+        }
+
+        // the k-th sample of the current row, scaled to 0-255
+        private int sample(int k) {
+            if (scale == null) { return bytes[k] & 0xFF; }
+            if (!wide)         { return scale[bytes[k] & 0xFF]; }
+            return scale[((bytes[2*k] & 0xFF) << 8) | (bytes[2*k + 1] & 0xFF)];
+        }
+
+        // make sure a whole row fits in the buffer
+        private void fit() {
+            if (rowBytes <= buffer.capacity()) { return; }
+            ByteBuffer bigger = ByteBuffer.allocateDirect(rowBytes);
+            bigger.put(buffer);
+            bigger.flip();
+            buffer = bigger;
+        }
+
+        // read the next decimal header field, skipping whitespace and # comments
+        private int number() throws IOException {
+            int c = next();
+            while (true) {
+                if (c == '#') {
+                    while (c != '\n' && c != '\r') { c = next(); }
+                }
+                else if (c != ' ' && c != '\t' && c != '\n' && c != '\r') { break; }
+                c = next();
+            }
+            if (c < '0' || c > '9') { throw new IOException("bad PNM header"); }
+            long n = 0;
+            while (c >= '0' && c <= '9') {
+                n = 10 * n + (c - '0');
+                if (n > Integer.MAX_VALUE) { throw new IOException("PNM header field too large"); }
+                ensure(1);
+                c = buffer.get(buffer.position());
+                if (c >= '0' && c <= '9') { buffer.get(); }
+            }
+            return (int) n;
+        }
+
+        private int next() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        // read from the channel until the buffer holds at least n unread bytes
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) { return; }
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) { throw new EOFException("unexpected end of image file"); }
+            }
+            buffer.flip();
+        }
+    }
+
+   /**
+     * Writes the rows of a PNM or raw file one at a time, top to bottom, from
+     * packed 0xAARRGGBB ints. Only one buffer of the file is held at a time.
+     */
+    public static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;    // bytes not yet written, in write mode
+        private final File file;
+        private final int width;
+        private final int height;
+        private final int layout;           // BITS, GRAY, RGB or RGBA
+        private final byte[] bytes;         // the current row
+        private int rows;                   // rows written so far
+
+       /**
+         * Create a w-by-h file in the format named by its suffix: .pbm, .pgm,
+         * .ppm, .pnm (written as PPM) or .raw (written as 3 bytes per pixel),
+         * replacing any existing file.
+         */
+        public Writer(File file, int w, int h) throws IOException {
+            this(file, w, h, layout(suffix(file.getName())));
+        }
+
+        private Writer(File file, int w, int h, int layout) throws IOException {
+            if (w <= 0 || h <= 0) { throw new IllegalArgumentException("width and height must be positive"); }
+            this.file   = file;
+            this.width  = w;
+            this.height = h;
+            this.layout = layout;
+            bytes  = new byte[rowBytes(w, layout, 255)];
+            buffer = ByteBuffer.allocateDirect(Math.max(BUFFER, bytes.length));
+            if (!suffix(file.getName()).equals("raw")) {
+                String magic = (layout == BITS) ? "P4" : (layout == GRAY) ? "P5" : "P6";
+                String header = magic + "\n" + w + " " + h + "\n" + ((layout == BITS) ? "" : "255\n");
+                buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+       /**
+         * Write the next row from the packed 0xAARRGGBB ints in the given
+         * array. Pixels are converted to gray or to black and white as the
+         * format requires.
+         */
+        public void writeRow(int[] row) throws IOException {
+            if (rows == height)     { throw new IOException("all " + height + " rows have been written"); }
+            if (row.length < width) { throw new IllegalArgumentException("row must hold " + width + " pixels"); }
+            if (layout == BITS) {
+                Arrays.fill(bytes, (byte) 0);
+                for (int i = 0; i < width; i++) {
+                    if (gray(row[i]) < 128) { bytes[i >> 3] |= (byte) (0x80 >>> (i & 7)); }
+                }
+            }
+            else if (layout == GRAY) {
+                for (int i = 0; i < width; i++) { bytes[i] = (byte) gray(row[i]); }
+            }
+            else {
+                for (int i = 0, k = 0; i < width; i++, k += layout) {
+                    int rgb = row[i];
+                    bytes[k]   = (byte) (rgb >> 16);
+                    bytes[k+1] = (byte) (rgb >>  8);
+                    bytes[k+2] = (byte)  rgb;
+                    if (layout == RGBA) { bytes[k+3] = (byte) (rgb >>> 24); }
+                }
+            }
+            if (buffer.remaining() < bytes.length) { drain(); }
+            buffer.put(bytes);
+            rows++;
+        }
+
+       /**
+         * Write out the buffered rows and close the file. Throws an
+         * IOException if fewer than height rows were written.
+         */
+        public void close() throws IOException {
+            try { drain(); }
+            finally { channel.close(); }
+            if (rows < height) {
+                throw new IOException("only " + rows + " of " + height + " rows written to " + file);
+            }
+        }
+
+        // write the buffered bytes to the channel and empty the buffer
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) { channel.write(buffer); }
+            buffer.clear();
+        }
+    }
+
+   /**
+     * Does the file name end in a suffix handled by this class?
+     */
+    public static boolean handles(String name) {
+        String suffix = suffix(name);
+        return suffix.equals("pbm") || suffix.equals("pgm") || suffix.equals("ppm")
+            || suffix.equals("pnm") || suffix.equals("raw");
+    }
+
+   /**
+     * Read a binary PBM, PGM or PPM file.
+     */
+    public static BufferedImage read(File file) throws IOException {
+        try (Reader reader = new Reader(file)) {
+            return reader.readImage();
+        }
+    }
+
+   /**
+     * Read a raw headerless file holding a w-by-h image with the given number
+     * of bytes per pixel: 1 for gray, 3 for RGB or 4 for RGBA.
+     */
+    public static BufferedImage readRaw(File file, int w, int h, int bands) throws IOException {
+        try (Reader reader = new Reader(file, w, h, bands)) {
+            return reader.readImage();
+        }
+    }
+
+   /**
+     * Write the picture to the given file in the format named by its suffix:
+     * .pbm, .pgm, .ppm, .pnm or .raw. Saving a color picture as .pgm or .pbm
+     * converts it to gray or black and white; .ppm and .pgm drop the alpha
+     * channel, which only .raw keeps.
+     */
+    public static void write(Picture picture, File file) throws IOException {
+        String suffix = suffix(file.getName());
+        int layout = layout(suffix);
+        if (suffix.equals("pnm") || suffix.equals("raw")) {
+            if      (picture.isBinary())                         { layout = suffix.equals("raw") ? GRAY : BITS; }
+            else if (picture.isGray())                           { layout = GRAY; }
+            else if (picture.hasAlpha() && suffix.equals("raw")) { layout = RGBA; }
+        }
+        int[] row = new int[picture.width()];
+        try (Writer writer = new Writer(file, picture.width(), picture.height(), layout)) {
+            for (int j = 0; j < picture.height(); j++) {
+                writer.writeRow(picture.getRow(j, row));
+            }
+        }
+    }
+
+    // the layout written for a suffix; .pnm and .raw default to RGB
+    private static int layout(String suffix) {
+        if (suffix.equals("pbm")) { return BITS; }
+        if (suffix.equals("pgm")) { return GRAY; }
+        if (suffix.equals("ppm") || suffix.equals("pnm") || suffix.equals("raw")) { return RGB; }
+        throw new IllegalArgumentException("not a PNM or raw file name: ." + suffix);
+    }
+
+    // bytes per row of a w-pixel row in the given layout
+    private static int rowBytes(int w, int layout, int maxval) {
+        if (layout == BITS) { return (w + 7) / 8; }
+        return w * layout * ((maxval > 255) ? 2 : 1);
+    }
+
+    // the gray level of an rgb value, as Picture computes it
+    private static int gray(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >>  8) & 0xFF;
+        int b =  rgb        & 0xFF;
+        return (r + g + b) / 3;
+    }
+
+    private static String suffix(String name) {
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+
+   /**
+     * Test client. Converts the picture named by the first command-line
+     * argument to the file named by the second, reads it back, and reports
+     * the time for each direction.
+     */
+    public static void main(String[] args) throws IOException {
+        Picture picture = new Picture(args[0]);
+        File file = new File(args[1]);
+        long start = System.nanoTime();
+        write(picture, file);
+        long written = System.nanoTime();
+        Picture copy = new Picture(file);
+        long read = System.nanoTime();
+        System.out.printf("%s: %d-by-%d, %d bytes, written in %.1f ms, read in %.1f ms\n",
+                          args[1], copy.width(), copy.height(), file.length(),
+                          (written - start) / 1e6, (read - written) / 1e6);
+    }
+
+}
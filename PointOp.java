@@ -0,0 +1,344 @@
+/*************************************************************************
+ *  Compilation:  javac PointOp.java
+ *  Execution:    java PointOp imagename
+ *
+ *  Point operations on pictures: per-channel lookup tables and 3-by-3
+ *  color matrices (with an offset), such as the negative, the grayscale
+ *  conversion and the histogram equalization remap. Chains of operations
+ *  are fused into as few table lookups as possible and applied to the
+ *  picture in one parallel pass over packed ints.
+ *
+ *  % java PointOp lich.png
+ *
+ *************************************************************************/
+
+
+/**
+ *  This class provides immutable point operations, which map each pixel to
+ *  a new color that depends only on its own color. An operation is built
+ *  from the factory methods and chained with then():
+ *  <pre>
+ *      PointOp op = PointOp.negative().then(PointOp.grayscale());
+ *      op.apply(picture);
+ *  </pre>
+ *  Consecutive lookup tables are composed into one table, and a lookup
+ *  table followed by a matrix is folded into per-channel tables of the
+ *  matrix products, so a chain costs about as much as its most expensive
+ *  link. Consecutive matrices are multiplied into one, so their
+ *  intermediate results are neither rounded nor clamped to [0, 255].
+ *  The alpha channel is left alone.
+ */
+public final class PointOp {
+    private static final int SHIFT = 16;                // fixed-point bits of the matrix tables
+    private static final long HALF = 1L << (SHIFT - 1);
+    private static final int ROWS = 16;                 // rows per bulk read and write
+
+    // the fused stages, applied in order; each maps channel c of a pixel to
+    // post[c][clamp(sum over k of terms[c][k][in_k] + offset[c])] if it has
+    // a matrix, and to post[c][in_c] if it doesn't
+    private final Stage[] stages;
+
+    private static final class Stage {
+        final int[][] pre;          // tables before the matrix, one per input channel
+        final double[][] matrix;    // 3-by-4 matrix with offsets in column 3, or null
+        final int[][] post;         // tables after the matrix, one per output channel
+        long[][][] terms;           // pre folded into matrix, in fixed point; built on first use
+        long[] offsets;
+
+        Stage(int[][] pre, double[][] matrix, int[][] post) {
+            this.pre    = pre;
+            this.matrix = matrix;
+            this.post   = post;
+        }
+
+        // the tables of matrix[c][k] * pre[k][v], in fixed point
+        synchronized void compile() {
+            if (terms != null || matrix == null) { return; }
+            long[][][] t = new long[3][3][256];
+            long[] o = new long[3];
+            for (int c = 0; c < 3; c++) {
+                for (int k = 0; k < 3; k++) {
+                    for (int v = 0; v < 256; v++) {
+                        t[c][k][v] = Math.round(matrix[c][k] * pre[k][v] * (1 << SHIFT));
+                    }
+                }
+                o[c] = Math.round(matrix[c][3] * (1 << SHIFT)) + HALF;
+            }
+            offsets = o;
+            terms = t;
+        }
+    }
+
+    private PointOp(Stage[] stages) {
+        this.stages = stages;
+    }
+
+   /**
+     * Return the operation that leaves every pixel unchanged.
+     */
+    public static PointOp identity() {
+        return new PointOp(new Stage[0]);
+    }
+
+   /**
+     * Return the operation that maps each of red, green and blue through
+     * the given 256-entry table.
+     */
+    public static PointOp lut(int[] table) {
+        return lut(table, table, table);
+    }
+
+   /**
+     * Return the operation that maps red, green and blue through their own
+     * 256-entry tables.
+     */
+    public static PointOp lut(int[] red, int[] green, int[] blue) {
+        int[][] post = { table(red), table(green), table(blue) };
+        return new PointOp(new Stage[] { new Stage(null, null, post) });
+    }
+
+   /**
+     * Return the operation that maps each pixel (r, g, b) to the matrix
+     * product m * (r, g, b, 1), rounded and clamped to [0, 255]. The matrix
+     * is 3-by-3, or 3-by-4 with the offset of each output channel in its
+     * last column.
+     */
+    public static PointOp matrix(double[][] m) {
+        if (m == null || m.length != 3) { throw new IllegalArgumentException("matrix must have 3 rows"); }
+        double[][] a = new double[3][4];
+        for (int c = 0; c < 3; c++) {
+            if (m[c].length != 3 && m[c].length != 4) {
+                throw new IllegalArgumentException("matrix rows must have 3 or 4 entries");
+            }
+            for (int k = 0; k < m[c].length; k++) {
+                if (Double.isNaN(m[c][k]) || Math.abs(m[c][k]) > 1e4) {
+                    throw new IllegalArgumentException("matrix entry out of range: " + m[c][k]);
+                }
+                a[c][k] = m[c][k];
+            }
+        }
+        return new PointOp(new Stage[] { new Stage(identity3(), a, identity3()) });
+    }
+
+   /**
+     * Return the negative: each channel value v becomes 255 - v.
+     */
+    public static PointOp negative() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) { table[v] = 255 - v; }
+        return lut(table);
+    }
+
+   /**
+     * Return the grayscale conversion: each pixel becomes the average of its
+     * red, green and blue values, rounded down, as in Picture.main() and the
+     * conversion to a gray picture.
+     */
+    public static PointOp grayscale() {
+        // (r + g + b)/3 is a whole number, or a third or two thirds past one;
+        // taking a third off before rounding to nearest rounds it down
+        double third = 1.0 / 3.0;
+        return matrix(new double[][] { { third, third, third, -third },
+                                       { third, third, third, -third },
+                                       { third, third, third, -third } });
+    }
+
+   /**
+     * Return the operation that applies this operation and then that one.
+     */
+    public PointOp then(PointOp that) {
+        Stage[] result = new Stage[stages.length + that.stages.length];
+        int n = 0;
+        for (Stage s : stages)      { result[n++] = s; }
+        for (Stage s : that.stages) {
+            if (n == 0) { result[n++] = s; continue; }
+            Stage last = result[n - 1];
+            Stage fused = fuse(last, s);
+            if (fused != null) { result[n - 1] = fused; }
+            else               { result[n++] = s;       }
+        }
+        Stage[] trimmed = new Stage[n];
+        System.arraycopy(result, 0, trimmed, 0, n);
+        return new PointOp(trimmed);
+    }
+
+   /**
+     * Return the number of table passes this operation makes per pixel after
+     * fusion: 0 for the identity, 1 for any chain of lookup tables and at
+     * most one matrix.
+     */
+    public int passes() {
+        return stages.length;
+    }
+
+   /**
+     * Return the result of this operation on the packed 0xAARRGGBB int rgb.
+     */
+    public int apply(int rgb) {
+        int[] pixel = { rgb };
+        apply(pixel, 0, 1);
+        return pixel[0];
+    }
+
+   /**
+     * Apply this operation to every pixel of the picture, in place, with the
+     * rows split into bands that run in parallel.
+     */
+    public void apply(Picture picture) {
+        if (stages.length == 0) { return; }
+        apply(picture, picture);
+    }
+
+   /**
+     * Write the result of this operation on every pixel of source to the same
+     * pixel of target, which must have the same size. Each band holds only a
+     * few rows at a time, so source and target can be mapped or tiled
+     * pictures larger than memory.
+     */
+    public void apply(Picture source, Picture target) {
+        final int w = source.width();
+        final int h = source.height();
+        if (target.width() != w || target.height() != h) {
+            throw new IllegalArgumentException("target must be " + w + "-by-" + h);
+        }
+        if (w == 0 || h == 0) { return; }
+        Parallel.forRange(h, Math.max(ROWS, Parallel.grain(h)), (lo, hi) -> {
+            int[] buffer = new int[w * Math.min(ROWS, hi - lo)];
+            for (int y = lo; y < hi; y += ROWS) {
+                int rows = Math.min(ROWS, hi - y);
+                source.getRegion(0, y, w, rows, buffer);
+                apply(buffer, 0, w * rows);
+                target.setRegion(0, y, w, rows, buffer);
+            }
+        });
+    }
+
+    // apply the stages to the n packed ints starting at from
+    void apply(int[] pixels, int from, int n) {
+        for (Stage s : stages) {
+            s.compile();
+            int[] post0 = s.post[0], post1 = s.post[1], post2 = s.post[2];
+            if (s.matrix == null) {
+                for (int i = from; i < from + n; i++) {
+                    int rgb = pixels[i];
+                    pixels[i] = (rgb & 0xFF000000) | (post0[(rgb >> 16) & 0xFF] << 16)
+                              | (post1[(rgb >> 8) & 0xFF] << 8) | post2[rgb & 0xFF];
+                }
+                continue;
+            }
+            long[][] t0 = s.terms[0], t1 = s.terms[1], t2 = s.terms[2];
+            long o0 = s.offsets[0], o1 = s.offsets[1], o2 = s.offsets[2];
+            for (int i = from; i < from + n; i++) {
+                int rgb = pixels[i];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >>  8) & 0xFF;
+                int b =  rgb        & 0xFF;
+                int r2 = clamp((t0[0][r] + t0[1][g] + t0[2][b] + o0) >> SHIFT);
+                int g2 = clamp((t1[0][r] + t1[1][g] + t1[2][b] + o1) >> SHIFT);
+                int b2 = clamp((t2[0][r] + t2[1][g] + t2[2][b] + o2) >> SHIFT);
+                pixels[i] = (rgb & 0xFF000000) | (post0[r2] << 16) | (post1[g2] << 8) | post2[b2];
+            }
+        }
+    }
+
+    // the single stage doing a and then b, or null if they don't fuse
+    private static Stage fuse(Stage a, Stage b) {
+        if (b.matrix == null) {
+            // a table after anything composes with its post tables
+            return new Stage(a.pre, a.matrix, compose(a.post, b.post));
+        }
+        if (a.matrix == null) {
+            // a table before a matrix composes with its pre tables
+            return new Stage(compose(a.post, b.pre), b.matrix, b.post);
+        }
+        if (isIdentity(a.post) && isIdentity(b.pre)) {
+            return new Stage(a.pre, multiply(b.matrix, a.matrix), b.post);
+        }
+        return null;
+    }
+
+    // the tables doing first and then second, channel by channel
+    private static int[][] compose(int[][] first, int[][] second) {
+        int[][] result = new int[3][256];
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) { result[c][v] = second[c][first[c][v]]; }
+        }
+        return result;
+    }
+
+    // the 3-by-4 affine matrix doing m and then n
+    private static double[][] multiply(double[][] n, double[][] m) {
+        double[][] result = new double[3][4];
+        for (int c = 0; c < 3; c++) {
+            for (int k = 0; k < 4; k++) {
+                double sum = (k == 3) ? n[c][3] : 0.0;
+                for (int j = 0; j < 3; j++) { sum += n[c][j] * m[j][k]; }
+                result[c][k] = sum;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isIdentity(int[][] tables) {
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) {
+                if (tables[c][v] != v) { return false; }
+            }
+        }
+        return true;
+    }
+
+    private static int[][] identity3() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) { table[v] = v; }
+        return new int[][] { table, table, table };
+    }
+
+    // a checked copy of a 256-entry table of values in [0, 255]
+    private static int[] table(int[] table) {
+        if (table == null || table.length != 256) {
+            throw new IllegalArgumentException("lookup table must have 256 entries");
+        }
+        int[] copy = table.clone();
+        for (int v = 0; v < 256; v++) {
+            if (copy[v] < 0 || copy[v] > 255) {
+                throw new IllegalArgumentException("lookup table entry " + v + " is not in [0, 255]");
+            }
+        }
+        return copy;
+    }
+
+    private static int clamp(long v) {
+        if (v < 0)   { return 0;   }
+        if (v > 255) { return 255; }
+        return (int) v;
+    }
+
+
+   /**
+     * Test client. Applies the negative, a gamma table and the grayscale
+     * conversion to the picture named by the first command-line argument,
+     * one operation at a time and then fused, and reports the times.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        int[] gamma = new int[256];
+        for (int v = 0; v < 256; v++) { gamma[v] = (int) Math.round(255 * Math.pow(v / 255.0, 0.8)); }
+        PointOp[] ops = { negative(), lut(gamma), grayscale() };
+
+        Picture separate = picture.copy();
+        long start = System.nanoTime();
+        for (PointOp op : ops) { op.apply(separate); }
+        long one = System.nanoTime() - start;
+
+        PointOp fused = ops[0].then(ops[1]).then(ops[2]);
+        Picture together = picture.copy();
+        start = System.nanoTime();
+        fused.apply(together);
+        long all = System.nanoTime() - start;
+
+        System.out.printf("separate: %.1f ms, fused into %d pass: %.1f ms\n", one / 1e6, fused.passes(), all / 1e6);
+        together.show();
+    }
+
+}
@@ -0,0 +1,120 @@
+/*************************************************************************
+ *  Compilation:  javac SaveQueue.java
+ *  Execution:    java SaveQueue imagename n
+ *
+ *  Bounded queue of background saves. Each submitted picture is copied
+ *  and encoded by a pool of encoder threads, so the caller can go on
+ *  filtering the next picture while the last one is deflated. Submitting
+ *  blocks while the queue is full, which bounds the memory held by
+ *  pending copies.
+ *
+ *  % java SaveQueue lich.png 20
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *  This class provides asynchronous saves of pictures. submit() takes a
+ *  snapshot of the picture, hands it to one of a fixed number of encoder
+ *  threads, and returns a Future that completes when the file is written.
+ *  At most capacity snapshots are held at a time; further calls to submit()
+ *  wait for a slot. Each encoder thread has its own PictureEncoder with the
+ *  settings given at construction.
+ */
+public final class SaveQueue {
+    private final ThreadPoolExecutor pool;              // encoder threads
+    private final Semaphore slots;                      // snapshots that may still be queued
+    private final ThreadLocal<PictureEncoder> encoders; // one encoder per thread
+
+   /**
+     * Create a queue with the given number of encoder threads that holds at
+     * most capacity pending pictures, saving with the settings of encoder.
+     */
+    public SaveQueue(int threads, int capacity, PictureEncoder encoder) {
+        if (threads < 1)        { throw new IllegalArgumentException("need at least one thread"); }
+        if (capacity < threads) { throw new IllegalArgumentException("capacity must be at least threads"); }
+        PictureEncoder settings = new PictureEncoder(encoder);
+        encoders = ThreadLocal.withInitial(() -> new PictureEncoder(settings));
+        slots = new Semaphore(capacity);
+        pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      r -> new Thread(r, "SaveQueue encoder"));
+        // let idle threads exit, so a forgotten queue doesn't keep the JVM alive
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+   /**
+     * Save a snapshot of the picture to the given file in the background,
+     * in the format named by its suffix. Blocks while the queue is full.
+     * The returned Future yields the file once it is written, or throws an
+     * ExecutionException if saving failed.
+     */
+    public Future<File> submit(Picture picture, File file) {
+        slots.acquireUninterruptibly();
+        try {
+            Picture snapshot = picture.copy();
+            return pool.submit(() -> {
+                try {
+                    encoders.get().write(snapshot, file);
+                    return file;
+                }
+                finally { slots.release(); }
+            });
+        }
+        catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+   /**
+     * Wait for all submitted saves to finish and stop the encoder threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) { }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+   /**
+     * Test client. Saves n copies of the picture named by the first
+     * command-line argument through a queue, and reports the time spent by
+     * the caller and in total.
+     */
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        Picture picture = new Picture(args[0]);
+        int n = Integer.parseInt(args[1]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        SaveQueue queue = new SaveQueue(threads, 2 * threads, new PictureEncoder());
+        long start = System.nanoTime();
+        List<Future<File>> saves = new ArrayList<Future<File>>(n);
+        for (int i = 0; i < n; i++) {
+            File file = new File(System.getProperty("java.io.tmpdir"), "SaveQueue" + i + ".png");
+            saves.add(queue.submit(picture, file));
+        }
+        long submitted = System.nanoTime();
+        for (Future<File> save : saves) {
+            save.get().delete();
+        }
+        long done = System.nanoTime();
+        queue.shutdown();
+        System.out.printf("submitted in %.1f ms, saved in %.1f ms\n",
+                          (submitted - start) / 1e6, (done - start) / 1e6);
+    }
+
+}
@@ -0,0 +1,160 @@
+/*************************************************************************
+ *  Compilation:  javac SummedAreaTable.java
+ *  Execution:    java SummedAreaTable imagename
+ *
+ *  Immutable data type for the summed-area table (integral image) of a
+ *  picture: for each channel, entry (x, y) is the sum of the pixels above
+ *  and to the left of (x, y). After one pass to build it, the sum of the
+ *  pixels in any rectangle takes four lookups, whatever its size, so
+ *  many box sums of different sizes over the same picture are cheap.
+ *
+ *  % java SummedAreaTable lich.png
+ *
+ *  Remarks
+ *  -------
+ *   - entries are ints that wrap around on overflow; the difference of
+ *     four entries is still exact modulo 2^32, so a rectangle sum is
+ *     exact as long as it is less than 2^32, that is, for rectangles of
+ *     up to 2^32 / 255 = 16843009 pixels
+ *
+ *************************************************************************/
+
+
+/**
+ *  This class provides the summed-area tables of the red, green and blue
+ *  channels of a picture (see Histogram for the channel constants). The
+ *  table takes 12 bytes per pixel. It is built in two parallel passes:
+ *  prefix sums along each row, with bands of rows in parallel, then down
+ *  each column, with strips of columns in parallel.
+ */
+public final class SummedAreaTable {
+    private static final long MAX_AREA = (1L << 32) / 255;  // largest rectangle with an exact sum
+
+    private final int width, height;
+    private final int[][] sums;     // sums[channel][y*(width+1) + x], for x <= width and y <= height
+
+   /**
+     * Build the summed-area tables of the given picture.
+     */
+    public SummedAreaTable(Picture picture) {
+        final int w = picture.width();
+        final int h = picture.height();
+        width  = w;
+        height = h;
+        final int stride = w + 1;
+        sums = new int[3][stride * (h + 1)];
+
+        // prefix sums along each row, into row y+1 of the table
+        Parallel.forRange(h, Parallel.grain(h), (lo, hi) -> {
+            int[] row = new int[w];
+            for (int y = lo; y < hi; y++) {
+                picture.getRow(y, row);
+                int base = (y + 1) * stride + 1;
+                int r = 0, g = 0, b = 0;
+                for (int x = 0; x < w; x++) {
+                    int rgb = row[x];
+                    r += (rgb >> 16) & 0xFF;
+                    g += (rgb >>  8) & 0xFF;
+                    b +=  rgb        & 0xFF;
+                    sums[0][base + x] = r;
+                    sums[1][base + x] = g;
+                    sums[2][base + x] = b;
+                }
+            }
+        });
+
+        // then down each column, one strip of columns per task
+        Parallel.forRange(stride, Math.max(64, Parallel.grain(stride)), (lo, hi) -> {
+            for (int[] table : sums) {
+                for (int y = 1; y <= h; y++) {
+                    int above = (y - 1) * stride;
+                    int here  = y * stride;
+                    for (int x = lo; x < hi; x++) { table[here + x] += table[above + x]; }
+                }
+            }
+        });
+    }
+
+   /**
+     * Return the width of the picture.
+     */
+    public int width() {
+        return width;
+    }
+
+   /**
+     * Return the height of the picture.
+     */
+    public int height() {
+        return height;
+    }
+
+   /**
+     * Return the sum of the given channel over the w-by-h rectangle whose
+     * upper left pixel is (x, y). The rectangle must lie in the picture and
+     * have at most 16843009 pixels.
+     */
+    public long sum(int channel, int x, int y, int w, int h) {
+        if (channel < Histogram.RED || channel > Histogram.BLUE) {
+            throw new IllegalArgumentException("unknown channel " + channel);
+        }
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+            throw new IndexOutOfBoundsException("rectangle " + w + "-by-" + h + " at (" + x + ", " + y
+                                                + ") is not in the " + width + "-by-" + height + " picture");
+        }
+        if ((long) w * h > MAX_AREA) {
+            throw new IllegalArgumentException("rectangle of " + (long) w * h + " pixels is too large");
+        }
+        int[] table = sums[channel];
+        int stride = width + 1;
+        int top    = y * stride;
+        int bottom = (y + h) * stride;
+        int sum = table[bottom + x + w] - table[bottom + x] - table[top + x + w] + table[top + x];
+        return sum & 0xFFFFFFFFL;
+    }
+
+   /**
+     * Return the mean of the given channel over the w-by-h rectangle whose
+     * upper left pixel is (x, y), rounded down.
+     */
+    public int mean(int channel, int x, int y, int w, int h) {
+        if (w == 0 || h == 0) { throw new IllegalArgumentException("rectangle is empty"); }
+        return (int) (sum(channel, x, y, w, h) / ((long) w * h));
+    }
+
+   /**
+     * Return the packed rgb color whose channels are the means over the
+     * w-by-h rectangle whose upper left pixel is (x, y), rounded down.
+     */
+    public int mean(int x, int y, int w, int h) {
+        return mean(Histogram.RED,   x, y, w, h) << 16
+             | mean(Histogram.GREEN, x, y, w, h) <<  8
+             | mean(Histogram.BLUE,  x, y, w, h);
+    }
+
+
+   /**
+     * Test client. Builds the table of the picture named by the first
+     * command-line argument, reports the time, and shows the picture with
+     * each pixel replaced by the mean of the 33-by-33 square around it,
+     * clipped to the picture.
+     */
+    public static void main(String[] args) {
+        Picture picture = new Picture(args[0]);
+        long start = System.nanoTime();
+        SummedAreaTable table = picture.summedAreaTable();
+        System.out.printf("%d-by-%d: %.1f ms\n", table.width(), table.height(),
+                          (System.nanoTime() - start) / 1e6);
+        int r = 16;
+        Picture means = new Picture(table.width(), table.height());
+        for (int y = 0; y < table.height(); y++) {
+            for (int x = 0; x < table.width(); x++) {
+                int x0 = Math.max(0, x - r), x1 = Math.min(table.width(),  x + r + 1);
+                int y0 = Math.max(0, y - r), y1 = Math.min(table.height(), y + r + 1);
+                means.setRGB(x, y, table.mean(x0, y0, x1 - x0, y1 - y0));
+            }
+        }
+        means.show();
+    }
+
+}
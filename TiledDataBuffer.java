@@ -0,0 +1,295 @@
+/*************************************************************************
+ *  Compilation:  javac TiledDataBuffer.java
+ *
+ *  A DataBuffer of packed int pixels split into square tiles that are
+ *  decoded (or created blank) on first access and kept in an LRU cache
+ *  under a memory budget. Used by Picture.tiled() so that operations on
+ *  part of a very large image only pay for the tiles they touch.
+ *
+ *  Remarks
+ *  -------
+ *   - tiles that have been written to are spilled to a temporary file
+ *     when evicted, and read back from it on the next access
+ *
+ *   - decoding uses ImageReadParam.setSourceRegion, so formats whose
+ *     readers can seek (such as tiled TIFF) decode a tile cheaply, while
+ *     sequential formats (PNG, JPEG) still scan the file up to the tile
+ *
+ *************************************************************************/
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+
+/**
+ *  This class provides a DataBuffer whose elements are stored in
+ *  tileSize-by-tileSize tiles, materialized lazily and evicted
+ *  least-recently-used first once the cached tiles exceed the budget.
+ *  All methods are synchronized, so the buffer can be shared by threads.
+ */
+public final class TiledDataBuffer extends PackedDataBuffer {
+    private final int width;            // width of the raster
+    private final int height;           // height of the raster
+    private final int tileSize;         // width and height of a tile
+    private final int across;           // number of tiles per row of tiles
+    private final int maxTiles;         // number of tiles that fit in the budget
+    private final boolean alpha;        // do pixels have alpha?
+    private final ImageReader reader;   // decoder of the source image, or null for a blank raster
+    private final LinkedHashMap<Integer, int[]> cache;   // resident tiles in LRU order
+    private final boolean[] dirty;      // has tile t been written since it was loaded?
+    private final boolean[] spilled;    // is the latest copy of tile t in the spill file?
+    private File spillFile;             // spill file for evicted dirty tiles, created on demand
+    private FileChannel spill;          // open channel to the spill file
+    private ByteBuffer transfer;        // tile-sized buffer for spill file I/O
+    private int lastIndex = -1;         // index of the most recently used tile
+    private int[] lastTile;             // the most recently used tile
+    private int loads;                  // number of tiles materialized so far
+    private boolean closed;             // has close() been called?
+
+    private TiledDataBuffer(int width, int height, int tileSize, long budget,
+                            boolean alpha, ImageReader reader) {
+        super(width * height);
+        if (tileSize <= 0) { throw new IllegalArgumentException("tile size must be positive"); }
+        this.width    = width;
+        this.height   = height;
+        this.tileSize = tileSize;
+        this.alpha    = alpha;
+        this.reader   = reader;
+        this.across   = (width  + tileSize - 1) / tileSize;
+        int down      = (height + tileSize - 1) / tileSize;
+        this.maxTiles = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / (4L * tileSize * tileSize)));
+        this.dirty    = new boolean[across * down];
+        this.spilled  = new boolean[across * down];
+        this.cache    = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+    }
+
+   /**
+     * Create a blank w-by-h raster of tileSize-by-tileSize tiles that keeps at
+     * most budget bytes of tiles in memory.
+     */
+    public static TiledDataBuffer create(int w, int h, int tileSize, long budget) {
+        if (w <= 0 || h <= 0 || (long) w * h > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("can't tile a " + w + "-by-" + h + " raster");
+        }
+        return new TiledDataBuffer(w, h, tileSize, budget, false, null);
+    }
+
+   /**
+     * Create a raster of tileSize-by-tileSize tiles that decodes the given
+     * image file one tile at a time and keeps at most budget bytes of tiles
+     * in memory. Only the header is read here.
+     */
+    public static TiledDataBuffer open(File file, int tileSize, long budget) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) { throw new IOException("Could not open file: " + file); }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("Invalid image file: " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input);
+        int w = reader.getWidth(0);
+        int h = reader.getHeight(0);
+        if ((long) w * h > Integer.MAX_VALUE) {
+            reader.dispose();
+            input.close();
+            throw new IOException("image too large to tile: " + file);
+        }
+        boolean alpha = reader.getImageTypes(0).next().getColorModel().hasAlpha();
+        return new TiledDataBuffer(w, h, tileSize, budget, alpha, reader);
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+   /**
+     * Return the number of tiles materialized so far, counting reloads of
+     * evicted tiles.
+     */
+    public synchronized int loads() {
+        return loads;
+    }
+
+   /**
+     * Return the number of tiles currently held in memory.
+     */
+    public synchronized int residentTiles() {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized int getElem(int bank, int i) {
+        int x = i % width, y = i / width;
+        return tile(x, y, false)[(y % tileSize) * tileSize + x % tileSize];
+    }
+
+    @Override
+    public synchronized void setElem(int bank, int i, int val) {
+        int x = i % width, y = i / width;
+        tile(x, y, true)[(y % tileSize) * tileSize + x % tileSize] = val;
+    }
+
+    @Override
+    public synchronized void getElems(int i, int[] dst, int off, int len) {
+        while (len > 0) {
+            int x = i % width, y = i / width;
+            int n = Math.min(len, Math.min(tileSize - x % tileSize, width - x));
+            System.arraycopy(tile(x, y, false), (y % tileSize) * tileSize + x % tileSize, dst, off, n);
+            i += n; off += n; len -= n;
+        }
+    }
+
+    @Override
+    public synchronized void setElems(int i, int[] src, int off, int len) {
+        while (len > 0) {
+            int x = i % width, y = i / width;
+            int n = Math.min(len, Math.min(tileSize - x % tileSize, width - x));
+            System.arraycopy(src, off, tile(x, y, true), (y % tileSize) * tileSize + x % tileSize, n);
+            i += n; off += n; len -= n;
+        }
+    }
+
+   /**
+     * Release the decoder, close the image file and delete the spill file.
+     * Reading or writing the buffer afterwards throws an
+     * IllegalStateException; closing it again does nothing.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) { return; }
+        closed = true;
+        cache.clear();
+        lastIndex = -1;
+        lastTile = null;
+        try {
+            if (reader != null) {
+                Object input = reader.getInput();
+                reader.dispose();
+                if (input instanceof ImageInputStream) { ((ImageInputStream) input).close(); }
+            }
+        }
+        finally {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+                if (!spillFile.delete() && spillFile.exists()) {
+                    throw new IOException("Could not delete spill file: " + spillFile);
+                }
+                spillFile = null;
+            }
+        }
+    }
+
+    // the tile holding pixel (x, y), loaded if necessary; marked dirty if it will be written
+    private int[] tile(int x, int y, boolean write) {
+        if (closed) { throw new IllegalStateException("picture is closed"); }
+        int t = (y / tileSize) * across + x / tileSize;
+        int[] tile;
+        if (t == lastIndex) { tile = lastTile; }
+        else {
+            tile = cache.get(t);
+            if (tile == null) {
+                tile = load(t);
+                cache.put(t, tile);
+                if (cache.size() > maxTiles) { evict(); }
+            }
+            lastIndex = t;
+            lastTile = tile;
+        }
+        if (write) { dirty[t] = true; }
+        return tile;
+    }
+
+    // drop the least recently used tile, spilling it first if it was written
+    private void evict() {
+        Map.Entry<Integer, int[]> eldest = cache.entrySet().iterator().next();
+        int t = eldest.getKey();
+        if (dirty[t]) {
+            try { writeSpill(t, eldest.getValue()); }
+            catch (IOException e) {
+                throw new RuntimeException("Could not spill tile " + t + ": " + e.getMessage());
+            }
+            dirty[t] = false;
+            spilled[t] = true;
+        }
+        cache.remove(t);
+        if (t == lastIndex) { lastIndex = -1; lastTile = null; }
+    }
+
+    // materialize tile t from the spill file, the source image, or blank
+    private int[] load(int t) {
+        int[] tile = new int[tileSize * tileSize];
+        loads++;
+        try {
+            if (spilled[t]) { readSpill(t, tile); }
+            else if (reader != null) { decode(t, tile); }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not load tile " + t + ": " + e.getMessage());
+        }
+        return tile;
+    }
+
+    // decode the region of tile t from the source image
+    private void decode(int t, int[] tile) throws IOException {
+        int x0 = (t % across) * tileSize, y0 = (t / across) * tileSize;
+        int w = Math.min(tileSize, width - x0), h = Math.min(tileSize, height - y0);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(x0, y0, w, h));
+        BufferedImage region = reader.read(0, param);
+        region.getRGB(0, 0, w, h, tile, 0, tileSize);
+    }
+
+    private void writeSpill(int t, int[] tile) throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("tiles", ".spill");
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw").getChannel();
+            transfer = ByteBuffer.allocateDirect(4 * tileSize * tileSize);
+        }
+        transfer.clear();
+        transfer.asIntBuffer().put(tile);
+        long position = 4L * tileSize * tileSize * t;
+        while (transfer.hasRemaining()) {
+            spill.write(transfer, position + transfer.position());
+        }
+    }
+
+    private void readSpill(int t, int[] tile) throws IOException {
+        transfer.clear();
+        long position = 4L * tileSize * tileSize * t;
+        while (transfer.hasRemaining()) {
+            if (spill.read(transfer, position + transfer.position()) < 0) {
+                throw new IOException("spill file truncated");
+            }
+        }
+        transfer.flip();
+        IntBuffer ints = transfer.asIntBuffer();
+        ints.get(tile);
+    }
+}